@@ -0,0 +1,105 @@
+package eu.ubitech.onenet.config.jwt;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.authentication.AbstractAuthenticationToken;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.jwt.NimbusJwtDecoder;
+
+/**
+ * Per request cost of authenticating a keycloak token: the signature check of the decoder, the
+ * mapping of the roles to authorities by Jwt2AuthoritiesConverterImpl, and both together. The
+ * same token is sent on every call, as the dashboard does, with the authorities cache on and off
+ * (max-entries 0).
+ *
+ * Run with: mvn -Pjmh test-compile exec:exec -Dbenchmark=JwtAuthenticationBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JwtAuthenticationBenchmark {
+
+    @Param({"true", "false"})
+    private boolean cache;
+
+    private String token;
+    private Jwt jwt;
+    private JwtDecoder decoder;
+    private Jwt2AuthenticationConverter authenticationConverter;
+
+    @Setup
+    public void setUp() throws NoSuchAlgorithmException, JOSEException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+
+        // the claims of a keycloak access token that the converter reads
+        JWTClaimsSet claims = new JWTClaimsSet.Builder()
+                .subject("8d5d1d6e-0f36-4bd2-a1b4-4a1d0b0bd6c1")
+                .issueTime(new Date())
+                .expirationTime(Date.from(Instant.now().plus(Duration.ofHours(1))))
+                .claim("realm_access", Map.of("roles", List.of("offline_access", "uma_authorization", "user")))
+                .claim("resource_access", Map.of("account",
+                        Map.of("roles", List.of("manage-account", "manage-account-links", "view-profile"))))
+                .build();
+        SignedJWT signed = new SignedJWT(new JWSHeader(JWSAlgorithm.RS256), claims);
+        signed.sign(new RSASSASigner(keyPair.getPrivate()));
+        token = signed.serialize();
+
+        decoder = NimbusJwtDecoder.withPublicKey((RSAPublicKey) keyPair.getPublic()).build();
+        jwt = decoder.decode(token);
+
+        PropertiesConfiguration config = new PropertiesConfiguration();
+        if (!cache) {
+            config.getJwtAuthorities().setMaxEntries(0);
+        }
+        authenticationConverter = new Jwt2AuthenticationConverterImpl(
+                new Jwt2AuthoritiesConverterImpl(config, new SimpleMeterRegistry()));
+    }
+
+    @Benchmark
+    public Jwt decode() {
+        return decoder.decode(token);
+    }
+
+    @Benchmark
+    public AbstractAuthenticationToken convert() {
+        return authenticationConverter.convert(jwt);
+    }
+
+    @Benchmark
+    public AbstractAuthenticationToken authenticate() {
+        return authenticationConverter.convert(decoder.decode(token));
+    }
+}
@@ -0,0 +1,144 @@
+package eu.ubitech.onenet.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import eu.ubitech.onenet.dto.AdvancedFilteringDto;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.message.BasicHeader;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClientBuilder;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of the same advanced filtering search repeated, with the clauses compiled by
+ * AdvancedFilteringQueryCompiler in filter context, and with the same clauses in must as before.
+ * At the end of each run the query cache hits and misses of connectors-* during the run are
+ * printed, the cache is cleared before each run.
+ *
+ * Needs a live elastic with logs of the last 7 days, set by the ELASTIC_URL environment variable
+ * (default http://localhost:9200) and, if secured, ELASTIC_USER and ELASTIC_PASS. Elastic only
+ * caches the filters of segments with over 10000 documents, after the filter has been used a
+ * few times.
+ *
+ * Run with: ELASTIC_URL=http://host:9200 mvn -Pjmh test-compile exec:exec -Dbenchmark=FilterContextBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterContextBenchmark {
+
+    public enum Context {
+        FILTER,
+        MUST
+    }
+
+    private static final String INDICES = "connectors-*";
+
+    @Param({"FILTER", "MUST"})
+    private Context context;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private RestHighLevelClient client;
+    private SearchRequest searchRequest;
+    private long hitsBefore;
+    private long missesBefore;
+
+    @Setup
+    public void setUp() throws IOException {
+        client = new RestHighLevelClient(clientBuilder());
+
+        // the filters of a table refreshed or paged by a user, the same on every call
+        AdvancedFilteringDto filter = new AdvancedFilteringDto();
+        filter.setDateFrom(Instant.now().truncatedTo(ChronoUnit.DAYS).minus(7, ChronoUnit.DAYS).toString());
+        filter.setBytesSentMin("0");
+        filter.setRequestMethods(List.of("GET", "POST"));
+        filter.setResponseCodes(List.of("200", "404"));
+
+        PropertiesConfiguration config = new PropertiesConfiguration();
+        config.getMonitoring().getIndexResolver().setEnabled(false);
+        BoolQueryBuilder query = new AdvancedFilteringQueryCompiler(new IndexResolver(client, config)).compile(filter);
+        if (context == Context.MUST) {
+            BoolQueryBuilder scored = QueryBuilders.boolQuery();
+            query.filter().forEach(scored::must);
+            query = scored;
+        }
+
+        searchRequest = new SearchRequest(INDICES)
+            .indicesOptions(IndexResolver.INDICES_OPTIONS)
+            .source(new SearchSourceBuilder()
+                .query(query)
+                .size(100)
+                .trackTotalHits(false)
+                .fetchSource(AdvancedFilteringQueryCompiler.SOURCE_FIELDS, new String[]{}));
+
+        client.getLowLevelClient().performRequest(new Request("POST", "/" + INDICES + "/_cache/clear?query=true"));
+        JsonNode stats = queryCacheStats();
+        hitsBefore = stats.path("hit_count").asLong();
+        missesBefore = stats.path("miss_count").asLong();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        JsonNode stats = queryCacheStats();
+        long hits = stats.path("hit_count").asLong() - hitsBefore;
+        long misses = stats.path("miss_count").asLong() - missesBefore;
+        System.out.printf("%n%s: query cache hits %d, misses %d, hit rate %.1f%%, cached queries %d%n",
+                context, hits, misses, hits + misses == 0 ? 0 : 100.0 * hits / (hits + misses),
+                stats.path("cache_count").asLong());
+        client.close();
+    }
+
+    @Benchmark
+    public SearchResponse search() throws IOException {
+        return client.search(searchRequest, RequestOptions.DEFAULT);
+    }
+
+    private JsonNode queryCacheStats() throws IOException {
+        Request request = new Request("GET", "/" + INDICES + "/_stats/query_cache");
+        JsonNode response = objectMapper.readTree(client.getLowLevelClient().performRequest(request).getEntity().getContent());
+        return response.path("_all").path("total").path("query_cache");
+    }
+
+    private static RestClientBuilder clientBuilder() {
+        RestClientBuilder builder = RestClient.builder(
+                HttpHost.create(System.getenv().getOrDefault("ELASTIC_URL", "http://localhost:9200")));
+        String user = System.getenv("ELASTIC_USER");
+        if (user != null) {
+            String credentials = user + ":" + System.getenv().getOrDefault("ELASTIC_PASS", "");
+            builder.setDefaultHeaders(new Header[]{new BasicHeader("Authorization",
+                    "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)))});
+        }
+        return builder;
+    }
+}
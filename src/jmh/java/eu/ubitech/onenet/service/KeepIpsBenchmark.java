@@ -0,0 +1,95 @@
+package eu.ubitech.onenet.service;
+
+import eu.ubitech.onenet.model.AnomalyPrediction;
+import eu.ubitech.onenet.util.Ipv4Set;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Filtering of one anomaly detection timeslot by the IPs found in elastic, as done by
+ * AnalyticsCommunicationService, against the HashSet of strings it replaced.
+ *
+ * Run with: mvn -Pjmh test-compile exec:exec -Dbenchmark=KeepIpsBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeepIpsBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    private int ips;
+
+    private AnomalyPrediction timeslot;
+    private List<String> foundIps;
+    private Ipv4Set found;
+    private Set<String> foundStrings;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        timeslot = new AnomalyPrediction();
+        foundIps = new ArrayList<>();
+        for (int i = 0; i < ips; i++) {
+            // fresh strings, as parsed from the analytics response
+            String ip = new String((10 + random.nextInt(200)) + "." + random.nextInt(256) + "."
+                    + random.nextInt(256) + "." + random.nextInt(256));
+            timeslot.getIp().add(ip);
+            timeslot.getIpStatus().add(random.nextDouble() * 2 - 1);
+            // about half of the predicted IPs are found in elastic
+            if (random.nextBoolean()) {
+                foundIps.add(new String(ip));
+            }
+        }
+        found = Ipv4Set.of(foundIps);
+        foundStrings = new HashSet<>(foundIps);
+    }
+
+    @Benchmark
+    public Ipv4Set buildIpv4Set() {
+        return Ipv4Set.of(foundIps);
+    }
+
+    @Benchmark
+    public Set<String> buildHashSet() {
+        return new HashSet<>(foundIps);
+    }
+
+    @Benchmark
+    public AnomalyPrediction keepIpsIpv4Set() {
+        return AnalyticsCommunicationService.keepIps(timeslot, found);
+    }
+
+    @Benchmark
+    public void keepIpsHashSet(Blackhole blackhole) {
+        List<String> ipList = timeslot.getIp();
+        List<String> kept = new ArrayList<>();
+        List<Double> keptStatuses = new ArrayList<>();
+        for (int i = 0; i < ipList.size(); i++) {
+            if (foundStrings.contains(ipList.get(i))) {
+                kept.add(ipList.get(i));
+                keptStatuses.add(timeslot.getIpStatus().get(i));
+            }
+        }
+        blackhole.consume(kept);
+        blackhole.consume(keptStatuses);
+    }
+}
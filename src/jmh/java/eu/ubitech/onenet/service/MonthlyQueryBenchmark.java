@@ -0,0 +1,91 @@
+package eu.ubitech.onenet.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import eu.ubitech.onenet.config.PropertiesConfiguration.MonthlyQueryMode;
+import eu.ubitech.onenet.dto.HttpTransactionsDto;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.elasticsearch.core.ElasticsearchRestTemplate;
+
+/**
+ * Latency of the monthly transactions widget in each `monitoring.monthly-query-mode`, with the
+ * rollups off so that every day is read from the logs of StandInElasticsearch.
+ *
+ * Run with: mvn -Pjmh test-compile exec:exec -Dbenchmark=MonthlyQueryBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MonthlyQueryBenchmark {
+
+    @Param({"SEQUENTIAL", "PARALLEL", "HISTOGRAM"})
+    private MonthlyQueryMode mode;
+
+    // round trip of one request to the stand-in
+    @Param({"5", "20"})
+    private long latencyMillis;
+
+    private StandInElasticsearch elasticsearch;
+    private RestHighLevelClient client;
+    private NetworkMonitoringService service;
+
+    @Setup
+    public void setUp() throws IOException {
+        elasticsearch = new StandInElasticsearch(latencyMillis);
+        client = elasticsearch.client();
+
+        PropertiesConfiguration config = new PropertiesConfiguration();
+        config.getMonitoring().setMonthlyQueryMode(mode);
+        config.getMonitoring().getRollup().setEnabled(false);
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        SearchInstrumentationService searches = new SearchInstrumentationService(client, meterRegistry);
+        IndexResolver indexResolver = new IndexResolver(client, config);
+
+        service = new NetworkMonitoringService(
+                new ElasticsearchRestTemplate(client),
+                searches,
+                config,
+                new QueryCacheService(config, meterRegistry),
+                new HourlyHistogramService(searches, config, indexResolver),
+                new AdvancedFilteringQueryCompiler(indexResolver),
+                new ConnectorRegistryService(searches, config, indexResolver),
+                new RollupService(new ObjectMapper(), config, indexResolver, searches),
+                indexResolver);
+
+        // the service logs failed queries and counts them as 0, which would be measured as fast
+        if (!service.queryLastMonth(null).getYaxis().stream().allMatch(count -> count == 1000L)) {
+            throw new IllegalStateException("queryLastMonth failed against the stand-in");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        service.shutdown();
+        client.close();
+        elasticsearch.close();
+    }
+
+    @Benchmark
+    public HttpTransactionsDto queryLastMonth() {
+        return service.queryLastMonth(null);
+    }
+}
@@ -0,0 +1,109 @@
+package eu.ubitech.onenet.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+
+/**
+ * Local stand-in of elastic for the benchmarks, answers each request after a fixed latency.
+ *
+ * - _search with aggregations: the daily date histogram of queryLastMonth, 1000 logs on each of
+ *   the last 31 days
+ * - _search without aggregations, as sent for the count of a day: 1000 hits
+ * - anything else: the cluster info the client checks before its first request
+ *
+ * The answers take the same time whatever the query, so the benchmarks compare the round trips
+ * and the client side work, not the work elastic does for each query.
+ */
+class StandInElasticsearch implements AutoCloseable {
+
+    private static final String SHARDS = "\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0}";
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "stand-in-elasticsearch");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final long latencyMillis;
+
+    StandInElasticsearch(long latencyMillis) throws IOException {
+        this.latencyMillis = latencyMillis;
+        // the response is written in two parts, with Nagle the second one waits for a delayed ack
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    RestHighLevelClient client() {
+        return new RestHighLevelClient(RestClient.builder(
+                new HttpHost("localhost", server.getAddress().getPort(), "http")));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String request = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        String path = exchange.getRequestURI().getPath();
+        String body;
+        if (path.endsWith("/_search")) {
+            body = request.contains("\"aggregations\"") ? histogram() : searchResponse(1000, "");
+        } else {
+            body = "{\"name\":\"stand-in\",\"cluster_name\":\"stand-in\",\"cluster_uuid\":\"stand-in\","
+                    + "\"version\":{\"number\":\"7.15.2\",\"build_flavor\":\"default\",\"build_type\":\"docker\","
+                    + "\"build_hash\":\"stand-in\",\"build_date\":\"2021-11-04T14:04:42.515624022Z\","
+                    + "\"build_snapshot\":false,\"lucene_version\":\"8.9.0\","
+                    + "\"minimum_wire_compatibility_version\":\"6.8.0\","
+                    + "\"minimum_index_compatibility_version\":\"6.0.0-beta1\"},"
+                    + "\"tagline\":\"You Know, for Search\"}";
+        }
+
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.getResponseHeaders().add("X-Elastic-Product", "Elasticsearch");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String histogram() {
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        String buckets = IntStream.rangeClosed(0, 30)
+                .mapToObj(i -> today.minusDays(30 - i).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli())
+                .map(key -> "{\"key\":" + key + ",\"doc_count\":1000}")
+                .collect(Collectors.joining(","));
+        return searchResponse(31000, ",\"aggregations\":{\"date_histogram#query_per_day\":{\"buckets\":["
+                + buckets + "]}}");
+    }
+
+    private static String searchResponse(long hits, String aggregations) {
+        return "{\"took\":1,\"timed_out\":false," + SHARDS + ","
+                + "\"hits\":{\"total\":{\"value\":" + hits + ",\"relation\":\"eq\"},\"max_score\":null,\"hits\":[]}"
+                + aggregations + "}";
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -1,21 +1,37 @@
 package eu.ubitech.onenet.config;
 
 import com.google.common.collect.Iterables;
+import eu.ubitech.onenet.config.PropertiesConfiguration.ElasticClientProperties;
+import eu.ubitech.onenet.service.SearchInstrumentationService;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+import org.apache.http.Header;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
 import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClientBuilder;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.elasticsearch.client.ClientConfiguration;
-import org.springframework.data.elasticsearch.client.RestClients;
 import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
 import org.springframework.data.elasticsearch.core.ElasticsearchRestTemplate;
 
@@ -27,23 +43,94 @@ public class ElasticConfig {
     PropertiesConfiguration config;
 
     @Bean
-    RestHighLevelClient client() {
-        ClientConfiguration clientConfiguration = ClientConfiguration.builder()
-                .connectedTo(config.getElasticUrl())
-                .withBasicAuth(config.getElasticUser(), config.getElasticPass())
+    RestHighLevelClient client(MeterRegistry meterRegistry) throws IOReactorException {
+        ElasticClientProperties properties = config.getElasticClient();
+
+        // our own connection manager, so that its pool can be published as metrics
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(properties.getIoThreads() > 0
+                        ? properties.getIoThreads() : Runtime.getRuntime().availableProcessors())
+                .setSoKeepAlive(true)
                 .build();
+        PoolingNHttpClientConnectionManager connectionManager =
+                new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig));
+        connectionManager.setMaxTotal(properties.getMaxConnTotal());
+        connectionManager.setDefaultMaxPerRoute(properties.getMaxConnPerRoute());
+        registerPoolMetrics(connectionManager, meterRegistry);
+
+        CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+        credentialsProvider.setCredentials(AuthScope.ANY,
+                new UsernamePasswordCredentials(config.getElasticUser(), config.getElasticPass()));
+
+        long keepAliveMs = properties.getKeepAliveSeconds() * 1000L;
+        RestClientBuilder builder = RestClient.builder(HttpHost.create(config.getElasticUrl()))
+                .setCompressionEnabled(properties.isCompression())
+                .setRequestConfigCallback(requestConfig -> requestConfig
+                        .setConnectTimeout(properties.getConnectTimeoutMs())
+                        .setSocketTimeout(properties.getSocketTimeoutMs())
+                        .setConnectionRequestTimeout(properties.getConnectionRequestTimeoutMs()))
+                .setHttpClientConfigCallback(httpClient -> httpClient
+                        .setConnectionManager(connectionManager)
+                        .setDefaultCredentialsProvider(credentialsProvider)
+                        // the shorter of what the node announces and our own limit
+                        .setKeepAliveStrategy((response, context) -> {
+                            long announced = DefaultConnectionKeepAliveStrategy.INSTANCE
+                                    .getKeepAliveDuration(response, context);
+                            return announced > 0 ? Math.min(announced, keepAliveMs) : keepAliveMs;
+                        })
+                        .addInterceptorLast((HttpResponse response, HttpContext context) ->
+                                recordResponseBytes(response, context, meterRegistry)));
+
+        return new RestHighLevelClient(builder);
+    }
+
+    /**
+     * Publishes the connections of the pool per state, a growing pending count means requests
+     * wait for a connection and the pool is too small
+     */
+    private void registerPoolMetrics(PoolingNHttpClientConnectionManager connectionManager, MeterRegistry meterRegistry) {
+        Map<String, ToDoubleFunction<PoolingNHttpClientConnectionManager>> states = Map.of(
+                "leased", m -> m.getTotalStats().getLeased(),
+                "pending", m -> m.getTotalStats().getPending(),
+                "available", m -> m.getTotalStats().getAvailable(),
+                "max", m -> m.getTotalStats().getMax());
+        states.forEach((state, value) -> Gauge
+                .builder("elasticsearch.client.pool.connections", connectionManager, value)
+                .tag("state", state)
+                .description("Connections of the elastic client pool")
+                .register(meterRegistry));
+    }
+
+    /**
+     * Records the size of each response, as sent by the node (compressed when compression is on),
+     * tagged by the query name of SearchInstrumentationService
+     */
+    private void recordResponseBytes(HttpResponse response, HttpContext context, MeterRegistry meterRegistry) {
+        if (response.getEntity() == null || response.getEntity().getContentLength() < 0) {
+            return;
+        }
+        HttpRequest request = HttpCoreContext.adapt(context).getRequest();
+        Header opaqueId = request == null ? null
+                : request.getFirstHeader(SearchInstrumentationService.OPAQUE_ID_HEADER);
+        String query = opaqueId != null && opaqueId.getValue().startsWith(SearchInstrumentationService.OPAQUE_ID_PREFIX)
+                ? opaqueId.getValue().substring(SearchInstrumentationService.OPAQUE_ID_PREFIX.length())
+                : "other";
 
-        return RestClients.create(clientConfiguration)
-                .rest();
+        DistributionSummary.builder("elasticsearch.query.response.bytes")
+                .baseUnit("bytes")
+                .description("Size of the elastic responses")
+                .tag("query", query)
+                .register(meterRegistry)
+                .record(response.getEntity().getContentLength());
     }
 
     @Bean(destroyMethod = "close")
-    public RestClient restClient() {
-        return client().getLowLevelClient();
+    public RestClient restClient(RestHighLevelClient client) {
+        return client.getLowLevelClient();
     }
 
     @Bean
-    public ElasticsearchOperations elasticsearchTemplate() {
-        return new ElasticsearchRestTemplate(client());
+    public ElasticsearchOperations elasticsearchTemplate(RestHighLevelClient client) {
+        return new ElasticsearchRestTemplate(client);
     }
 }
@@ -1,6 +1,8 @@
 package eu.ubitech.onenet.config;
 
+import lombok.AllArgsConstructor;
 import lombok.Getter;
+import lombok.NoArgsConstructor;
 import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
@@ -14,9 +16,14 @@ public class PropertiesConfiguration {
     private KeycloakProperties keycloak = new KeycloakProperties();
     private MyKeyClientProperties myKeyClient = new MyKeyClientProperties();
     private RateLimitProperties rateLimit = new RateLimitProperties();
+    private MonitoringProperties monitoring = new MonitoringProperties();
+    private AnalyticsClientProperties analyticsClient = new AnalyticsClientProperties();
+    private ElasticClientProperties elasticClient = new ElasticClientProperties();
+    private JwtAuthoritiesProperties jwtAuthorities = new JwtAuthoritiesProperties();
 
     private int minInterval;
     private int minIntervalAlerts;
+    private int ssePoolSize;
 
     private String elasticUrl;
     private String elasticUser;
@@ -42,11 +49,261 @@ public class PropertiesConfiguration {
         private String adminPass;
     }
 
+    @Getter
+    @Setter
+    public static class JwtAuthoritiesProperties {
+        // tokens whose authorities are kept, each until the token expires
+        private int maxEntries = 10000;
+        // distinct role sets shared between the tokens, the rarer ones are not shared
+        private int maxRoleSets = 1000;
+    }
+
     @Getter
     @Setter
     public static class RateLimitProperties {
+        // the light pool, used by the endpoints without a @RateLimitCost pool
         private int capacity;
         private int tokenRefill;
         private int refillIntervalInMinutes;
+        // the heavy pool, for the endpoints that run expensive elastic queries
+        private RateLimitPoolProperties heavy = new RateLimitPoolProperties();
+        // most buckets kept, the least recently used are evicted first
+        private int maxBuckets = 100000;
+        // a bucket unused for this long is dropped, never before it would have refilled completely
+        private int idleMinutes = 60;
+        // where the buckets are kept, LOCAL for a single node, JDBC to share them between replicas
+        private RateLimitBackend backend = RateLimitBackend.LOCAL;
+        private RateLimitJdbcProperties jdbc = new RateLimitJdbcProperties();
+    }
+
+    @Getter
+    @Setter
+    public static class RateLimitJdbcProperties {
+        // calls a replica may consume locally before writing them to the database, 0 writes every call
+        private int maxUnsynchronizedCalls = 10;
+        // longest time the locally consumed calls wait before they are written
+        private int maxUnsynchronizedMillis = 1000;
+        // how often the buckets unused for idle-minutes are deleted from the database
+        private int cleanupMinutes = 10;
+    }
+
+    @Getter
+    @Setter
+    public static class RateLimitPoolProperties {
+        private int capacity = 30;
+        private int tokenRefill = 10;
+        private int refillIntervalInMinutes = 1;
+    }
+
+    @Getter
+    @Setter
+    public static class ElasticClientProperties {
+        private int connectTimeoutMs = 5000;
+        // longest wait for a response, the slowest aggregation must fit
+        private int socketTimeoutMs = 30000;
+        // longest wait for a free connection of the pool
+        private int connectionRequestTimeoutMs = 5000;
+        private int maxConnTotal = 100;
+        private int maxConnPerRoute = 50;
+        // idle connections are closed after this, before the nodes or a proxy drop them
+        private int keepAliveSeconds = 60;
+        // gzip request bodies and ask for gzip responses
+        private boolean compression = false;
+        // 0 for one per processor
+        private int ioThreads = 0;
+    }
+
+    @Getter
+    @Setter
+    public static class AnalyticsClientProperties {
+        // largest response body in bytes that is decoded
+        private int maxInMemorySize = 16 * 1024 * 1024;
+        private int timeoutSeconds = 30;
+        private PredictionCacheProperties cache = new PredictionCacheProperties();
+    }
+
+    @Getter
+    @Setter
+    public static class PredictionCacheProperties {
+        private int maxEntries = 100;
+        // age in seconds after which a read triggers a background reload
+        private int refreshSeconds = 60;
+        // age in seconds after which a prediction is no longer served
+        private int expireSeconds = 600;
+    }
+
+    @Getter
+    @Setter
+    public static class MonitoringProperties {
+        private MonthlyQueryMode monthlyQueryMode = MonthlyQueryMode.PARALLEL;
+        private int monthlyQueryThreads = 5;
+        private boolean incrementalHistogram = true;
+        private int histogramSettleSeconds = 60;
+        private QueryCacheProperties cache = new QueryCacheProperties();
+        private ExportProperties export = new ExportProperties();
+        private PagingProperties paging = new PagingProperties();
+        private ConnectorRegistryProperties connectorRegistry = new ConnectorRegistryProperties();
+        private IpLookupProperties ipLookup = new IpLookupProperties();
+        private RollupProperties rollup = new RollupProperties();
+        private PlannerProperties planner = new PlannerProperties();
+        private IndexResolverProperties indexResolver = new IndexResolverProperties();
+        private BulkheadsProperties bulkheads = new BulkheadsProperties();
+        private ConcurrencyProperties concurrency = new ConcurrencyProperties();
+    }
+
+    @Getter
+    @Setter
+    public static class QueryCacheProperties {
+        private int maxEntries = 1000;
+        // time to live of the cached results in seconds, 0 disables caching
+        private int hitsPerCountryTtl = 300;
+        private int bytesSentTtl = 60;
+        private int responseCodesTtl = 60;
+    }
+
+    @Getter
+    @Setter
+    public static class ExportProperties {
+        // logs fetched per elastic request, at most 10000
+        private int pageSize = 1000;
+        // how long the point in time is kept open between two pages
+        private int keepAliveSeconds = 60;
+    }
+
+    @Getter
+    @Setter
+    public static class PagingProperties {
+        private int defaultPageSize = 50;
+        private int maxPageSize = 1000;
+        // how long the point in time of a paged search is kept open between two pages
+        private int keepAliveSeconds = 300;
+    }
+
+    @Getter
+    @Setter
+    public static class ConnectorRegistryProperties {
+        // only connectors that sent logs within the last days are listed
+        private int lookbackDays = 30;
+        private int refreshSeconds = 60;
+        // connectors fetched per composite aggregation page
+        private int pageSize = 500;
+    }
+
+    @Getter
+    @Setter
+    public static class IpLookupProperties {
+        // IPs per terms query, must stay below the index.max_terms_count of elastic
+        private int chunkSize = 5000;
+        // chunks that elastic runs at the same time
+        private int maxConcurrentSearches = 4;
+        // IP buckets per composite aggregation page
+        private int pageSize = 500;
+    }
+
+    @Getter
+    @Setter
+    public static class RollupProperties {
+        private boolean enabled = true;
+        // must not match connectors-*
+        private String index = "rollup-connectors";
+        // closed days that are kept rolled up
+        private int days = 31;
+        // minutes after midnight UTC before a day is rolled up, for late logs
+        private int settleMinutes = 60;
+        private int refreshMinutes = 10;
+        // connectors rolled up per search, each one adds about 700 buckets (max_buckets is 65535)
+        private int pageSize = 50;
+    }
+
+    @Getter
+    @Setter
+    public static class PlannerProperties {
+        // buckets a custom range may return
+        private int maxBuckets = 1000;
+        // buckets aimed for when no interval is given
+        private int targetBuckets = 60;
+        // when false, ranges with too many buckets are rejected instead of downsampled
+        private boolean downsample = true;
+        private int maxSpanDays = 400;
+        // days of a daily plan that may be summarised live, more fall back to the raw histogram
+        private int maxLiveDays = 2;
+    }
+
+    @Getter
+    @Setter
+    public static class IndexResolverProperties {
+        // when false, every search goes to connectors-*
+        private boolean enabled = true;
+        private int refreshSeconds = 60;
+        // ranges over more daily indices search connectors-* instead
+        private int maxIndices = 62;
+    }
+
+    @Getter
+    @Setter
+    public static class BulkheadsProperties {
+        private BulkheadProperties charts = new BulkheadProperties(10, 100, 20);
+        private BulkheadProperties filtering = new BulkheadProperties(4, 20, 25);
+    }
+
+    @Getter
+    @Setter
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class BulkheadProperties {
+        // calls running at the same time
+        private int threads;
+        // calls waiting for a thread, more are rejected
+        private int queue;
+        // below the async request timeout of the servlet container (30s on tomcat)
+        private int timeoutSeconds;
+    }
+
+    @Getter
+    @Setter
+    public static class ConcurrencyProperties {
+        private boolean enabled = true;
+        // sent as Retry-After with the 503 of a rejected call
+        private int retryAfterSeconds = 2;
+        private ConcurrencyLimitProperties charts = new ConcurrencyLimitProperties(6, 2, 10, 500, 100);
+        private ConcurrencyLimitProperties filtering = new ConcurrencyLimitProperties(2, 1, 4, 1000, 50);
+        private ConcurrencyLimitProperties analytics = new ConcurrencyLimitProperties(4, 1, 10, 1000, 50);
+    }
+
+    @Getter
+    @Setter
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class ConcurrencyLimitProperties {
+        private int initialLimit;
+        private int minLimit;
+        // keep at or below the threads of the bulkhead, the calls over it would wait there instead
+        private int maxLimit;
+        // longest wait for a slot before the call is rejected
+        private int queueTimeoutMs;
+        // calls after which the lowest latency is measured again
+        private int probeInterval;
+    }
+
+    /**
+     * How the daily counts of the monthly HTTP transactions are fetched from elastic
+     * - SEQUENTIAL: one count request per daily index, one after the other
+     * - PARALLEL: one count request per daily index, on a bounded executor
+     * - HISTOGRAM: a single daily date histogram over all indices
+     */
+    public enum MonthlyQueryMode {
+        SEQUENTIAL,
+        PARALLEL,
+        HISTOGRAM
+    }
+
+    /**
+     * Where the rate limit buckets are kept
+     * - LOCAL: in memory, each replica limits on its own
+     * - JDBC: in the database, shared by all replicas
+     */
+    public enum RateLimitBackend {
+        LOCAL,
+        JDBC
     }
 }
@@ -1,50 +1,143 @@
 package eu.ubitech.onenet.config.jwt;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Ticker;
 import eu.ubitech.onenet.config.PropertiesConfiguration;
+import eu.ubitech.onenet.config.PropertiesConfiguration.JwtAuthoritiesProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.oauth2.jwt.Jwt;
 import org.springframework.stereotype.Component;
 
+/**
+ * Maps the realm and account roles of a keycloak token to authorities.
+ *
+ * The same token is sent with every dashboard and SSE call until it expires, so the authorities
+ * are cached per token, keyed by its signature, until its exp. Most users share a handful of role
+ * sets, each distinct set is kept once as an immutable list shared by all its tokens. Hit, miss
+ * and eviction counters are published as `cache.*` metrics of the `jwt.authorities` cache.
+ */
 @Slf4j
 @Component
 public class Jwt2AuthoritiesConverterImpl implements Jwt2AuthoritiesConverter{
 
+    // tokens without exp
+    private static final Duration DEFAULT_LIFETIME = Duration.ofMinutes(5);
+
     private PropertiesConfiguration config;
 
-    public Jwt2AuthoritiesConverterImpl(PropertiesConfiguration config) {
+    private final Cache<String, CachedAuthorities> cache;
+    private final Map<List<String>, List<GrantedAuthority>> roleSets = new ConcurrentHashMap<>();
+
+    @Autowired
+    public Jwt2AuthoritiesConverterImpl(PropertiesConfiguration config, MeterRegistry meterRegistry) {
+        this(config, meterRegistry, Ticker.systemTicker());
+    }
+
+    Jwt2AuthoritiesConverterImpl(PropertiesConfiguration config, MeterRegistry meterRegistry, Ticker ticker) {
         this.config = config;
+
+        JwtAuthoritiesProperties properties = config.getJwtAuthorities();
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(properties.getMaxEntries())
+                .expireAfter(new Expiry<String, CachedAuthorities>() {
+                    @Override
+                    public long expireAfterCreate(String key, CachedAuthorities value, long currentTime) {
+                        return Math.max(0, Duration.between(Instant.now(), value.expiresAt).toNanos());
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, CachedAuthorities value, long currentTime,
+                            long currentDuration) {
+                        return expireAfterCreate(key, value, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, CachedAuthorities value, long currentTime,
+                            long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .ticker(ticker)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "jwt.authorities");
     }
 
     @Override
     public Collection<? extends GrantedAuthority> convert(Jwt jwt) {
+        String tokenValue = jwt.getTokenValue();
+        // the signature is unique per token, and much shorter than the token
+        String key = tokenValue.substring(tokenValue.lastIndexOf('.') + 1);
+        return cache.get(key, k -> new CachedAuthorities(resolve(jwt),
+                jwt.getExpiresAt() != null ? jwt.getExpiresAt() : Instant.now().plus(DEFAULT_LIFETIME)))
+                .authorities;
+    }
 
+    private List<GrantedAuthority> resolve(Jwt jwt) {
         try {
-            List<String> realmAccess = (List<String>) ((Map<String, Object>) jwt.getClaim(
-                    "realm_access")).get("roles");
-            log.debug("realm_access roles: {}", realmAccess);
-
-            List<String> clientAccess = (List<String>) ((Map<String, Object>) jwt.getClaimAsMap(
-                    "resource_access").get("account")).get(
-                    "roles");
-            log.debug("resource_access roles: {}", clientAccess);
+            List<String> roles = new ArrayList<>();
+
+            Map<String, Object> realmAccess = jwt.getClaimAsMap("realm_access");
+            if (realmAccess != null && realmAccess.get("roles") != null) {
+                roles.addAll((Collection<String>) realmAccess.get("roles"));
+            }
+            log.debug("realm_access roles: {}", roles);
+
+            Map<String, Object> resourceAccess = jwt.getClaimAsMap("resource_access");
+            Map<String, Object> account = resourceAccess == null ? null
+                    : (Map<String, Object>) resourceAccess.get("account");
+            if (account != null && account.get("roles") != null) {
+                roles.addAll((Collection<String>) account.get("roles"));
+            }
+            log.debug("realm_access and resource_access roles: {}", roles);
             // maybe claims of cliend id are needed, eg login-app
 
-            return Stream
-                    .concat(realmAccess.stream(),
-                            clientAccess.stream()).map(SimpleGrantedAuthority::new)
-                    .collect(Collectors.toList());
+            return intern(roles);
         }
         catch (Exception e){
             log.error("Could not get claims. Exception: {}", e.getMessage());
-            return null;
+            return List.of();
         }
+    }
 
+    private List<GrantedAuthority> intern(List<String> roles) {
+        List<GrantedAuthority> shared = roleSets.get(roles);
+        if (shared != null) {
+            return shared;
+        }
+
+        List<GrantedAuthority> authorities = roles.stream()
+                .map(SimpleGrantedAuthority::new)
+                .collect(Collectors.toUnmodifiableList());
+        if (roleSets.size() >= config.getJwtAuthorities().getMaxRoleSets()) {
+            return authorities;
+        }
+        List<GrantedAuthority> previous = roleSets.putIfAbsent(List.copyOf(roles), authorities);
+        return previous != null ? previous : authorities;
+    }
+
+    private static class CachedAuthorities {
+        private final List<GrantedAuthority> authorities;
+        private final Instant expiresAt;
+
+        CachedAuthorities(List<GrantedAuthority> authorities, Instant expiresAt) {
+            this.authorities = authorities;
+            this.expiresAt = expiresAt;
+        }
     }
 }
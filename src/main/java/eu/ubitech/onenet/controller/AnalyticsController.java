@@ -1,8 +1,17 @@
 package eu.ubitech.onenet.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.ubitech.onenet.interceptors.RateLimitCost;
+import eu.ubitech.onenet.model.SecurityReportHitsCount;
 import eu.ubitech.onenet.service.AnalyticsCommunicationService;
+import eu.ubitech.onenet.service.ConcurrencyLimitService;
+import eu.ubitech.onenet.service.ConcurrencyLimitService.EndpointClass;
+import eu.ubitech.onenet.service.RateLimitingService.Pool;
+import eu.ubitech.onenet.service.SecurityReportService;
 import eu.ubitech.onenet.util.Mappings;
+import java.io.OutputStream;
 import java.util.Optional;
+import javax.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -20,9 +29,18 @@ import org.springframework.web.bind.annotation.RequestParam;
 public class AnalyticsController {
 
     private final AnalyticsCommunicationService service;
+    private final SecurityReportService securityReportService;
+    private final ObjectMapper objectMapper;
+    private final ConcurrencyLimitService concurrencyLimits;
 
-    public AnalyticsController(AnalyticsCommunicationService service) {
+    public AnalyticsController(AnalyticsCommunicationService service,
+            SecurityReportService securityReportService,
+            ObjectMapper objectMapper,
+            ConcurrencyLimitService concurrencyLimits) {
         this.service = service;
+        this.securityReportService = securityReportService;
+        this.objectMapper = objectMapper;
+        this.concurrencyLimits = concurrencyLimits;
     }
 
     @GetMapping(
@@ -32,13 +50,37 @@ public class AnalyticsController {
         },
         produces = MediaType.APPLICATION_JSON_VALUE)
     @ResponseStatus(HttpStatus.OK)
-    public Object getAnalytics(@RequestHeader String Authorization, @PathVariable Optional<String> connector, @RequestParam(name = "minutes", required = false, defaultValue = "60") String minutes) {
-        return service.getAnomalyResults(connector.isPresent() ? connector.get() : null, minutes);
+    @RateLimitCost(value = 3, pool = Pool.HEAVY)
+    public Object getAnalytics(@RequestHeader String Authorization, @PathVariable Optional<String> connector, @RequestParam(name = "minutes", required = false, defaultValue = "60") String minutes) throws Exception {
+        return concurrencyLimits.call(EndpointClass.ANALYTICS,
+                () -> service.getAnomalyResults(connector.isPresent() ? connector.get() : null, minutes));
     }
 
     @GetMapping(value = "/analytics/security_report", produces = MediaType.APPLICATION_JSON_VALUE)
     @ResponseStatus(HttpStatus.OK)
-    public Object getSecurityReport(@RequestHeader String Authorization) {
-        return service.getSecurityReport();
+    @RateLimitCost(value = 5, pool = Pool.HEAVY)
+    public Object getSecurityReport(@RequestHeader String Authorization) throws Exception {
+        return concurrencyLimits.call(EndpointClass.ANALYTICS, service::getSecurityReport);
+    }
+
+    // Same rows as the security report, one JSON object per line, sent page by page
+    @GetMapping(value = "/analytics/security_report/stream")
+    @RateLimitCost(value = 5, pool = Pool.HEAVY)
+    public void streamSecurityReport(@RequestHeader String Authorization, HttpServletResponse response) throws Exception {
+        concurrencyLimits.call(EndpointClass.ANALYTICS, () -> {
+            response.setStatus(HttpStatus.OK.value());
+            response.setContentType("application/x-ndjson");
+            response.setCharacterEncoding("UTF-8");
+            OutputStream out = response.getOutputStream();
+
+            securityReportService.generate(rows -> {
+                for (SecurityReportHitsCount row : rows) {
+                    out.write(objectMapper.writeValueAsBytes(row));
+                    out.write('\n');
+                }
+                out.flush();
+            });
+            return null;
+        });
     }
 }
@@ -3,7 +3,23 @@ package eu.ubitech.onenet.controller;
 import eu.ubitech.onenet.config.PropertiesConfiguration;
 import eu.ubitech.onenet.dto.HttpTransactionsDto;
 import eu.ubitech.onenet.dto.AdvancedFilteringDto;
+import eu.ubitech.onenet.dto.AdvancedFilteringPageDto;
+import eu.ubitech.onenet.dto.DashboardDto;
+import eu.ubitech.onenet.dto.DashboardDto.Widget;
+import eu.ubitech.onenet.exceptions.InvalidParameterException;
+import eu.ubitech.onenet.interceptors.RateLimitCost;
+import eu.ubitech.onenet.service.AdvancedFilteringExportService;
+import eu.ubitech.onenet.service.AdvancedFilteringExportService.Format;
+import eu.ubitech.onenet.service.AdvancedFilteringPagingService;
+import eu.ubitech.onenet.service.BulkheadService;
+import eu.ubitech.onenet.service.BulkheadService.Bulkhead;
+import eu.ubitech.onenet.service.ConcurrencyLimitService;
+import eu.ubitech.onenet.service.ConcurrencyLimitService.EndpointClass;
+import eu.ubitech.onenet.service.HttpTransactionsBroadcastService;
 import eu.ubitech.onenet.service.NetworkMonitoringService;
+import eu.ubitech.onenet.service.QueryPlanner;
+import eu.ubitech.onenet.service.QueryPlanner.QueryPlan;
+import eu.ubitech.onenet.service.RateLimitingService.Pool;
 import eu.ubitech.onenet.util.Mappings;
 import eu.ubitech.onenet.model.ConnectorLogs;
 import eu.ubitech.onenet.model.CountryHitsCount;
@@ -11,11 +27,13 @@ import eu.ubitech.onenet.model.StackedSeriesDataPoint;
 import eu.ubitech.onenet.model.AdvancedFilteringResult;
 import eu.ubitech.onenet.model.HealthCheckResult;
 import java.time.Duration;
+import java.util.EnumSet;
 import java.util.Optional;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -28,8 +46,8 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
-import org.springframework.web.servlet.mvc.method.annotation.SseEmitter.SseEventBuilder;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import java.util.List;
 import java.util.ArrayList;
 
@@ -39,11 +57,29 @@ import java.util.ArrayList;
 public class NetworkMonitoringController {
 
     private final NetworkMonitoringService service;
+    private final HttpTransactionsBroadcastService broadcastService;
+    private final AdvancedFilteringExportService exportService;
+    private final AdvancedFilteringPagingService pagingService;
+    private final QueryPlanner queryPlanner;
+    private final BulkheadService bulkheads;
+    private final ConcurrencyLimitService concurrencyLimits;
     private final PropertiesConfiguration config;
 
     public NetworkMonitoringController(NetworkMonitoringService service,
+            HttpTransactionsBroadcastService broadcastService,
+            AdvancedFilteringExportService exportService,
+            AdvancedFilteringPagingService pagingService,
+            QueryPlanner queryPlanner,
+            BulkheadService bulkheads,
+            ConcurrencyLimitService concurrencyLimits,
             PropertiesConfiguration config) {
         this.service = service;
+        this.broadcastService = broadcastService;
+        this.exportService = exportService;
+        this.pagingService = pagingService;
+        this.queryPlanner = queryPlanner;
+        this.bulkheads = bulkheads;
+        this.concurrencyLimits = concurrencyLimits;
         this.config = config;
     }
 
@@ -54,9 +90,16 @@ public class NetworkMonitoringController {
         },
         produces = MediaType.APPLICATION_JSON_VALUE)
     @ResponseStatus(HttpStatus.OK)
-    public HttpTransactionsDto getHttpMonthly(@RequestHeader String Authorization, @PathVariable Optional<String> connector) {
+    public Mono<HttpTransactionsDto> getHttpMonthly(@RequestHeader String Authorization, @PathVariable Optional<String> connector,
+            @RequestParam(name = "from", required = false) String from,
+            @RequestParam(name = "to", required = false) String to,
+            @RequestParam(name = "interval", required = false) String interval) {
         log.info("get http monthly called");
-        return service.queryLastMonth(connector.isPresent() ? connector.get() : null);
+        if (queryPlanner.isRequested(from, to, interval)) {
+            QueryPlan plan = queryPlanner.plan(from, to, interval);
+            return bulkheads.run(Bulkhead.CHARTS, () -> service.queryHits(plan, connector.orElse(null)));
+        }
+        return bulkheads.run(Bulkhead.CHARTS, () -> service.queryLastMonth(connector.isPresent() ? connector.get() : null));
     }
 
     @GetMapping(
@@ -66,9 +109,16 @@ public class NetworkMonitoringController {
         },
         produces = MediaType.APPLICATION_JSON_VALUE)
     @ResponseStatus(HttpStatus.OK)
-    public HttpTransactionsDto getHttp24HourStatic(@RequestHeader String Authorization, @PathVariable Optional<String> connector) {
+    public Mono<HttpTransactionsDto> getHttp24HourStatic(@RequestHeader String Authorization, @PathVariable Optional<String> connector,
+            @RequestParam(name = "from", required = false) String from,
+            @RequestParam(name = "to", required = false) String to,
+            @RequestParam(name = "interval", required = false) String interval) {
         log.info("get http 24 hourly called");
-        return service.query24hourEntriesCount(connector.isPresent() ? connector.get() : null);
+        if (queryPlanner.isRequested(from, to, interval)) {
+            QueryPlan plan = queryPlanner.plan(from, to, interval);
+            return bulkheads.run(Bulkhead.CHARTS, () -> service.queryHits(plan, connector.orElse(null)));
+        }
+        return bulkheads.run(Bulkhead.CHARTS, () -> service.query24hourEntriesCount(connector.isPresent() ? connector.get() : null));
     }
 
     @GetMapping(
@@ -77,21 +127,7 @@ public class NetworkMonitoringController {
         })
     public SseEmitter handleRbe(@RequestParam(name = "connector", required = false, defaultValue = "") String connector) {
         log.debug("get http live events called with connector [{}]", (connector.length() == 0 ? "*" : connector));
-        SseEmitter emitter = new SseEmitter();
-        ExecutorService sseMvcExecutor = Executors.newSingleThreadExecutor();
-        sseMvcExecutor.execute(() -> {
-            try {
-                while (true) {
-                    SseEventBuilder event = SseEmitter.event()
-                            .data(service.query24hourEntriesCount(connector.length() == 0 ? null : connector));
-                    emitter.send(event);
-                    Thread.sleep(1000L * config.getMinInterval());
-                }
-            } catch (Exception ex) {
-                emitter.completeWithError(ex);
-            }
-        });
-        return emitter;
+        return broadcastService.subscribe(connector.length() == 0 ? null : connector);
     }
 
     @GetMapping(
@@ -101,9 +137,16 @@ public class NetworkMonitoringController {
         },
         produces = MediaType.APPLICATION_JSON_VALUE)
     @ResponseStatus(HttpStatus.OK)
-    public List<CountryHitsCount> getHttpMonthlyPerCountry(@RequestHeader String Authorization, @PathVariable Optional<String> connector) {
+    public Mono<List<CountryHitsCount>> getHttpMonthlyPerCountry(@RequestHeader String Authorization, @PathVariable Optional<String> connector,
+            @RequestParam(name = "from", required = false) String from,
+            @RequestParam(name = "to", required = false) String to,
+            @RequestParam(name = "interval", required = false) String interval) {
         log.debug("get http monthly per country called with connector [{}]", connector.isPresent() ? connector.get() : "*");
-        return service.aggregateHitsPerCountry(connector.isPresent() ? connector.get() : null);
+        if (queryPlanner.isRequested(from, to, interval)) {
+            QueryPlan plan = queryPlanner.plan(from, to, interval);
+            return bulkheads.run(Bulkhead.CHARTS, () -> service.aggregateHitsPerCountry(plan, connector.orElse(null)));
+        }
+        return bulkheads.run(Bulkhead.CHARTS, () -> service.aggregateHitsPerCountry(connector.isPresent() ? connector.get() : null));
     }
 
     @GetMapping(
@@ -113,9 +156,16 @@ public class NetworkMonitoringController {
         },
         produces = MediaType.APPLICATION_JSON_VALUE)
     @ResponseStatus(HttpStatus.OK)
-    public HttpTransactionsDto getHttpBytesSent(@RequestHeader String Authorization, @PathVariable Optional<String> connector) {
+    public Mono<HttpTransactionsDto> getHttpBytesSent(@RequestHeader String Authorization, @PathVariable Optional<String> connector,
+            @RequestParam(name = "from", required = false) String from,
+            @RequestParam(name = "to", required = false) String to,
+            @RequestParam(name = "interval", required = false) String interval) {
         log.debug("get http bytes sent called with connector [{}]", connector.isPresent() ? connector.get() : "*");
-        return service.aggregateRecentBytesSent(connector.isPresent() ? connector.get() : null);
+        if (queryPlanner.isRequested(from, to, interval)) {
+            QueryPlan plan = queryPlanner.plan(from, to, interval);
+            return bulkheads.run(Bulkhead.CHARTS, () -> service.aggregateBytesSent(plan, connector.orElse(null)));
+        }
+        return bulkheads.run(Bulkhead.CHARTS, () -> service.aggregateRecentBytesSent(connector.isPresent() ? connector.get() : null));
     }
 
     @GetMapping(
@@ -125,29 +175,108 @@ public class NetworkMonitoringController {
         },
         produces = MediaType.APPLICATION_JSON_VALUE)
     @ResponseStatus(HttpStatus.OK)
-    public List<StackedSeriesDataPoint> getHttpResponseCodes(@RequestHeader String Authorization, @PathVariable Optional<String> connector) {
+    public Mono<List<StackedSeriesDataPoint>> getHttpResponseCodes(@RequestHeader String Authorization, @PathVariable Optional<String> connector,
+            @RequestParam(name = "from", required = false) String from,
+            @RequestParam(name = "to", required = false) String to,
+            @RequestParam(name = "interval", required = false) String interval) {
         log.debug("get http response codes called with connector [{}]", connector.isPresent() ? connector.get() : "*");
-        return service.aggregateRecentResponseCodes(connector.isPresent() ? connector.get() : null);
+        if (queryPlanner.isRequested(from, to, interval)) {
+            QueryPlan plan = queryPlanner.plan(from, to, interval);
+            return bulkheads.run(Bulkhead.CHARTS, () -> service.aggregateResponseCodes(plan, connector.orElse(null)));
+        }
+        return bulkheads.run(Bulkhead.CHARTS, () -> service.aggregateRecentResponseCodes(connector.isPresent() ? connector.get() : null));
+    }
+
+    @GetMapping(
+        value = {
+            "/monitoring/network/dashboard",
+            "/monitoring/network/dashboard/{connector}"
+        },
+        produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseStatus(HttpStatus.OK)
+    @RateLimitCost(3)
+    public Mono<DashboardDto> getDashboard(@RequestHeader String Authorization, @PathVariable Optional<String> connector,
+            @RequestParam(name = "widgets", required = false) List<String> widgets) {
+        log.debug("get dashboard called with connector [{}] and widgets {}", connector.isPresent() ? connector.get() : "*", widgets);
+        Set<Widget> requested = EnumSet.allOf(Widget.class);
+        if (widgets != null) {
+            requested.clear();
+            for (String name : widgets) {
+                Widget widget = Widget.fromName(name);
+                if (widget == null) {
+                    throw new InvalidParameterException();
+                }
+                requested.add(widget);
+            }
+        }
+        return bulkheads.run(Bulkhead.CHARTS, () -> service.queryDashboard(connector.orElse(null), requested));
     }
 
     @GetMapping(value = "/monitoring/network/connectors", produces = MediaType.APPLICATION_JSON_VALUE)
     @ResponseStatus(HttpStatus.OK)
-    public List<String> getConnectorList(@RequestHeader String Authorization) {
+    public Mono<List<String>> getConnectorList(@RequestHeader String Authorization) {
         log.debug("get connector list called");
-        return service.queryConnectors();
+        return bulkheads.run(Bulkhead.CHARTS, () -> service.queryConnectors());
     }
 
     @GetMapping(value = "/monitoring/network/connectors-health-check", produces = MediaType.APPLICATION_JSON_VALUE)
     @ResponseStatus(HttpStatus.OK)
-    public List<HealthCheckResult> getConnectorsHealthCheck(@RequestHeader String Authorization) {
+    public Mono<List<HealthCheckResult>> getConnectorsHealthCheck(@RequestHeader String Authorization) {
         log.debug("get connectors health check called");
-        return service.getHealthCheck();
+        return bulkheads.run(Bulkhead.CHARTS, () -> service.getHealthCheck());
     }
 
     @PostMapping(value = "/monitoring/network/advanced-filtering", produces = MediaType.APPLICATION_JSON_VALUE)
     @ResponseStatus(HttpStatus.OK)
-    public List<AdvancedFilteringResult> getAdvancedFilteringResults(@RequestHeader String Authorization, @Valid @RequestBody AdvancedFilteringDto advancedFilteringDto) {
+    @RateLimitCost(value = 5, pool = Pool.HEAVY)
+    public Mono<List<AdvancedFilteringResult>> getAdvancedFilteringResults(@RequestHeader String Authorization, @Valid @RequestBody AdvancedFilteringDto advancedFilteringDto) {
         log.debug("get advanced filtering results called");
-        return service.doAdvancedFiltering(advancedFilteringDto);
+        return bulkheads.run(Bulkhead.FILTERING, () -> service.doAdvancedFiltering(advancedFilteringDto));
+    }
+
+    @PostMapping(value = "/monitoring/network/advanced-filtering/page", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseStatus(HttpStatus.OK)
+    @RateLimitCost(value = 2, pool = Pool.HEAVY)
+    public Mono<AdvancedFilteringPageDto> getAdvancedFilteringPage(@RequestHeader String Authorization,
+            @RequestParam(name = "cursor", required = false) String cursor,
+            @RequestParam(name = "pageSize", required = false) Integer pageSize,
+            @Valid @RequestBody AdvancedFilteringDto advancedFilteringDto) {
+        log.debug("get advanced filtering page called");
+        return bulkheads.run(Bulkhead.FILTERING, () -> pagingService.getPage(advancedFilteringDto, cursor, pageSize));
+    }
+
+    @PostMapping(value = "/monitoring/network/advanced-filtering/export")
+    @RateLimitCost(value = 10, pool = Pool.HEAVY)
+    public void exportAdvancedFilteringResults(@RequestHeader String Authorization,
+            @RequestParam(name = "format", required = false, defaultValue = "ndjson") String format,
+            @RequestParam(name = "pageSize", required = false) Integer pageSize,
+            @Valid @RequestBody AdvancedFilteringDto advancedFilteringDto,
+            HttpServletResponse response) throws Exception {
+        log.debug("export advanced filtering results called with format [{}]", format);
+        Format exportFormat;
+        try {
+            exportFormat = Format.valueOf(format.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidParameterException();
+        }
+        if (pageSize != null && pageSize <= 0) {
+            throw new InvalidParameterException();
+        }
+
+        // streams to the servlet thread's response, so it holds a slot of the filtering limit
+        // rather than a bulkhead thread whose timeout would cut long exports
+        concurrencyLimits.call(EndpointClass.FILTERING, () -> {
+            response.setStatus(HttpStatus.OK.value());
+            response.setCharacterEncoding("UTF-8");
+            if (exportFormat == Format.CSV) {
+                response.setContentType("text/csv");
+                response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"advanced-filtering.csv\"");
+            } else {
+                response.setContentType("application/x-ndjson");
+                response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"advanced-filtering.ndjson\"");
+            }
+            exportService.export(advancedFilteringDto, exportFormat, pageSize, response.getOutputStream());
+            return null;
+        });
     }
 }
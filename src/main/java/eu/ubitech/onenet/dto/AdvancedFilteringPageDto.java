@@ -0,0 +1,21 @@
+package eu.ubitech.onenet.dto;
+
+import eu.ubitech.onenet.model.AdvancedFilteringResult;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+
+@Data
+public class AdvancedFilteringPageDto {
+
+    @Getter
+    @Setter
+    List<AdvancedFilteringResult> results = new ArrayList<>();
+
+    // opaque cursor of the next page, null when this is the last page
+    @Getter
+    @Setter
+    String cursor;
+}
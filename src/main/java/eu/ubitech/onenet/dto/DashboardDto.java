@@ -0,0 +1,74 @@
+package eu.ubitech.onenet.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import eu.ubitech.onenet.model.CountryHitsCount;
+import eu.ubitech.onenet.model.HealthCheckResult;
+import eu.ubitech.onenet.model.StackedSeriesDataPoint;
+import java.util.List;
+import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+
+// the widgets that were not asked for are left out
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class DashboardDto {
+
+    @Getter
+    @Setter
+    @JsonProperty("http-monthly")
+    HttpTransactionsDto httpMonthly;
+
+    @Getter
+    @Setter
+    @JsonProperty("http-hourly")
+    HttpTransactionsDto httpHourly;
+
+    @Getter
+    @Setter
+    @JsonProperty("http-monthly-per-country")
+    List<CountryHitsCount> httpMonthlyPerCountry;
+
+    @Getter
+    @Setter
+    @JsonProperty("http-bytes-sent")
+    HttpTransactionsDto httpBytesSent;
+
+    @Getter
+    @Setter
+    @JsonProperty("http-response-codes")
+    List<StackedSeriesDataPoint> httpResponseCodes;
+
+    @Getter
+    @Setter
+    @JsonProperty("connectors-health-check")
+    List<HealthCheckResult> connectorsHealthCheck;
+
+    /**
+     * The widgets of the dashboard, named after their own endpoints
+     */
+    public enum Widget {
+        HTTP_MONTHLY("http-monthly"),
+        HTTP_HOURLY("http-hourly"),
+        HTTP_MONTHLY_PER_COUNTRY("http-monthly-per-country"),
+        HTTP_BYTES_SENT("http-bytes-sent"),
+        HTTP_RESPONSE_CODES("http-response-codes"),
+        CONNECTORS_HEALTH_CHECK("connectors-health-check");
+
+        private final String name;
+
+        Widget(String name) {
+            this.name = name;
+        }
+
+        public static Widget fromName(String name) {
+            for (Widget widget : values()) {
+                if (widget.name.equals(name)) {
+                    return widget;
+                }
+            }
+            return null;
+        }
+    }
+}
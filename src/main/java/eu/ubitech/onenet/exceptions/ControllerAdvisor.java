@@ -1,7 +1,10 @@
 package eu.ubitech.onenet.exceptions;
 
 import eu.ubitech.onenet.service.AnalyticsCommunicationService;
+import eu.ubitech.onenet.config.PropertiesConfiguration;
 import java.util.Map;
+import javax.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
@@ -13,6 +16,12 @@ import org.springframework.web.servlet.mvc.method.annotation.ResponseEntityExcep
 @RestControllerAdvice
 public class ControllerAdvisor extends ResponseEntityExceptionHandler {
 
+    private final PropertiesConfiguration config;
+
+    public ControllerAdvisor(PropertiesConfiguration config) {
+        this.config = config;
+    }
+
     /**
      * Exception with status 422 Unprocessable entity, means the request has correct syntax but not content
      */
@@ -62,4 +71,47 @@ public class ControllerAdvisor extends ResponseEntityExceptionHandler {
             AnalyticsCommunicationException ex, WebRequest request) {
         return Map.of("message", "Cannot connect analytics service");
     }
+
+    /**
+     * Exception with status 400 thrown when a request parameter has an unsupported value
+     */
+    @ExceptionHandler(InvalidParameterException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public Map<String, String> handleInvalidParameterException(
+            InvalidParameterException ex, WebRequest request) {
+        return Map.of("message", "Invalid request parameter");
+    }
+
+    /**
+     * Exception with status 410 GONE thrown when the point in time of a paging cursor expired
+     */
+    @ExceptionHandler(CursorExpiredException.class)
+    @ResponseStatus(HttpStatus.GONE)
+    public Map<String, String> handleCursorExpiredException(
+            CursorExpiredException ex, WebRequest request) {
+        return Map.of("message", "The cursor expired, start again from the first page");
+    }
+
+    /**
+     * Exception with status 503 thrown when there is no room for more concurrent queries,
+     * Retry-After tells the client when to try again
+     */
+    @ExceptionHandler(ServiceBusyException.class)
+    @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+    public Map<String, String> handleServiceBusyException(
+            ServiceBusyException ex, WebRequest request, HttpServletResponse response) {
+        response.setHeader(HttpHeaders.RETRY_AFTER,
+                String.valueOf(config.getMonitoring().getConcurrency().getRetryAfterSeconds()));
+        return Map.of("message", "Too many concurrent requests, try again later");
+    }
+
+    /**
+     * Exception with status 504 thrown when a query to elastic takes too long
+     */
+    @ExceptionHandler(QueryTimeoutException.class)
+    @ResponseStatus(HttpStatus.GATEWAY_TIMEOUT)
+    public Map<String, String> handleQueryTimeoutException(
+            QueryTimeoutException ex, WebRequest request) {
+        return Map.of("message", "Query timed out");
+    }
 }
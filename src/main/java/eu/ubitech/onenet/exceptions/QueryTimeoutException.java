@@ -0,0 +1,4 @@
+package eu.ubitech.onenet.exceptions;
+
+public class QueryTimeoutException extends RuntimeException{
+}
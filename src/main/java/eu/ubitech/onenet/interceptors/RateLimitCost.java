@@ -0,0 +1,23 @@
+package eu.ubitech.onenet.interceptors;
+
+import eu.ubitech.onenet.service.RateLimitingService.Pool;
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Number of API calls a request of the endpoint costs, and the pool they are taken from.
+ * Read by RateLimitInterceptor, on the method or else on its controller. Endpoints without it
+ * cost one call of the LIGHT pool.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface RateLimitCost {
+
+    int value() default 1;
+
+    Pool pool() default Pool.LIGHT;
+}
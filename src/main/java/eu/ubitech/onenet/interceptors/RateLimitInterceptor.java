@@ -1,21 +1,29 @@
 package eu.ubitech.onenet.interceptors;
 
 import eu.ubitech.onenet.service.RateLimitingService;
+import eu.ubitech.onenet.service.RateLimitingService.Pool;
+import javax.servlet.DispatcherType;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.annotation.AnnotatedElementUtils;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
 import org.springframework.stereotype.Component;
+import org.springframework.web.method.HandlerMethod;
 import org.springframework.web.servlet.HandlerInterceptor;
-import io.github.bucket4j.Bucket;
 import io.github.bucket4j.ConsumptionProbe;
 
 @Component
-// Checks if the client has available API calls to make before making a new one
+// Checks if the client has available API calls to make before making a new one.
+// Authenticated calls are counted per user (the subject of the validated jwt, which stays the same
+// across token refreshes), anonymous calls per client IP. A request costs the calls of the
+// @RateLimitCost of its endpoint, one light call by default
 public class RateLimitInterceptor implements HandlerInterceptor {
 
-    private static final String HEADER_API_KEY = "Authorization";
     private static final String HEADER_LIMIT_REMAINING = "X-Rate-Limit-Remaining";
     private static final String HEADER_RETRY_AFTER = "X-Rate-Limit-Retry-After-Seconds";
 
@@ -26,14 +34,15 @@ public class RateLimitInterceptor implements HandlerInterceptor {
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
             throws Exception {
 
-        String apiKey = request.getHeader(HEADER_API_KEY);
-
-        if (apiKey == null || apiKey.isEmpty()) {
+        // the controllers that return a Mono are dispatched a second time to write the result,
+        // the request was already counted on its first dispatch
+        if (request.getDispatcherType() == DispatcherType.ASYNC) {
             return true;
         }
 
-        Bucket tokenBucket = rateLimitingService.resolveBucket(apiKey);
-        ConsumptionProbe probe = tokenBucket.tryConsumeAndReturnRemaining(1);
+        RateLimitCost cost = resolveCost(handler);
+        ConsumptionProbe probe = rateLimitingService.tryConsume(resolveKey(request),
+                cost == null ? Pool.LIGHT : cost.pool(), cost == null ? 1 : cost.value());
 
         // if the user has API requests available, fulfil the request
         if (probe.isConsumed()) {
@@ -49,4 +58,27 @@ public class RateLimitInterceptor implements HandlerInterceptor {
             return false;
         }
     }
+
+    // the annotation of the method, or else of its controller
+    private RateLimitCost resolveCost(Object handler) {
+        if (!(handler instanceof HandlerMethod)) {
+            return null;
+        }
+        HandlerMethod handlerMethod = (HandlerMethod) handler;
+        RateLimitCost cost = handlerMethod.getMethodAnnotation(RateLimitCost.class);
+        return cost != null ? cost
+                : AnnotatedElementUtils.findMergedAnnotation(handlerMethod.getBeanType(), RateLimitCost.class);
+    }
+
+    private String resolveKey(HttpServletRequest request) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication instanceof JwtAuthenticationToken) {
+            String subject = ((JwtAuthenticationToken) authentication).getToken().getSubject();
+            if (subject != null) {
+                return RateLimitingService.USER_KEY_PREFIX + subject;
+            }
+        }
+        // behind a proxy this is the proxy, unless server.forward-headers-strategy is set
+        return RateLimitingService.IP_KEY_PREFIX + request.getRemoteAddr();
+    }
 }
\ No newline at end of file
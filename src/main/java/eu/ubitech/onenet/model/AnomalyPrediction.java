@@ -0,0 +1,37 @@
+package eu.ubitech.onenet.model;
+
+import com.fasterxml.jackson.annotation.JsonAnyGetter;
+import com.fasterxml.jackson.annotation.JsonAnySetter;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.Data;
+
+/**
+ * One timeslot of the anomaly detection predictions, as returned by the analytics service.
+ * ip and ipStatus are parallel lists, a negative status means the IP behavior was abnormal.
+ * Any other field of the timeslot is kept as is and returned to the frontend unchanged.
+ */
+@Data
+public class AnomalyPrediction {
+
+    @JsonProperty("ip")
+    private List<String> ip = new ArrayList<>();
+
+    @JsonProperty("ip_status")
+    private List<Double> ipStatus = new ArrayList<>();
+
+    private Map<String, Object> other = new LinkedHashMap<>();
+
+    @JsonAnySetter
+    public void addOther(String name, Object value) {
+        other.put(name, value);
+    }
+
+    @JsonAnyGetter
+    public Map<String, Object> getOther() {
+        return other;
+    }
+}
@@ -0,0 +1,24 @@
+package eu.ubitech.onenet.model;
+
+import java.util.HashMap;
+import java.util.Map;
+import lombok.Data;
+
+/**
+ * Summary of the logs of one connector (or "*" for all logs) for one UTC day, as stored in the
+ * rollup index
+ */
+@Data
+public class DailyRollup {
+    // yyyy.MM.dd, the same as the daily index names
+    private String day;
+    private String connector;
+    private long hits;
+    private long bytes;
+    // hits per response code
+    private Map<String, Long> responseCodes = new HashMap<>();
+    // hits per country code
+    private Map<String, Long> countries = new HashMap<>();
+    // country name per country code
+    private Map<String, String> countryNames = new HashMap<>();
+}
@@ -8,11 +8,14 @@ public class SecurityReportHitsCount {
     private String countryCode;
     private Long hitsCount;
     private Long errorsCount;
+    // share of the hits that were errors, 0 to 1
+    private Double errorRatio;
 
     public SecurityReportHitsCount(String ip, String countryCode, Long hitsCount, Long errorsCount) {
         this.ip = ip;
         this.countryCode = countryCode;
         this.hitsCount = hitsCount;
         this.errorsCount = errorsCount;
+        this.errorRatio = hitsCount == 0 ? 0.0 : (double) errorsCount / hitsCount;
     }
 }
@@ -0,0 +1,198 @@
+package eu.ubitech.onenet.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import eu.ubitech.onenet.config.PropertiesConfiguration.ExportProperties;
+import eu.ubitech.onenet.dto.AdvancedFilteringDto;
+import eu.ubitech.onenet.model.AdvancedFilteringResult;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.search.ClosePointInTimeRequest;
+import org.elasticsearch.action.search.OpenPointInTimeRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.PointInTimeBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.convert.ElasticsearchConverter;
+import org.springframework.data.elasticsearch.core.document.DocumentAdapters;
+import org.springframework.stereotype.Service;
+
+/**
+ * Streams all the logs matching an advanced filter, without the 10000 results limit of the
+ * advanced filtering search.
+ *
+ * The logs are paged with a point in time and search_after, sorted by timestamp, and each page is
+ * written and flushed to the output as soon as it arrives, so memory use does not depend on the
+ * number of results. If the client goes away, the next write fails and the export stops.
+ */
+@Slf4j
+@Service
+public class AdvancedFilteringExportService {
+
+    private static final int max_elastic_page_size = 10000; // limitation set by elastic
+
+    private static final List<String> CSV_HEADER = List.of(
+            "timestamp", "connector", "requestMethod", "path", "contentLength", "responseCode",
+            "bytesSent", "clientIP", "os", "browser", "countryCode", "cityName");
+
+    public enum Format {
+        NDJSON,
+        CSV
+    }
+
+    private final SearchInstrumentationService searches;
+    private final ElasticsearchConverter converter;
+    private final AdvancedFilteringQueryCompiler queryCompiler;
+    private final ObjectMapper objectMapper;
+    private final ExportProperties properties;
+
+    public AdvancedFilteringExportService(
+            SearchInstrumentationService searches,
+            ElasticsearchOperations elasticsearchOperations,
+            AdvancedFilteringQueryCompiler queryCompiler,
+            ObjectMapper objectMapper,
+            PropertiesConfiguration config) {
+        this.searches = searches;
+        this.converter = elasticsearchOperations.getElasticsearchConverter();
+        this.queryCompiler = queryCompiler;
+        this.objectMapper = objectMapper;
+        this.properties = config.getMonitoring().getExport();
+    }
+
+    /**
+     * Function that writes all the logs matching the filter to the output
+     *
+     * @param filter - the advanced filtering filters
+     * @param format - NDJSON or CSV
+     * @param pageSize - logs fetched per elastic request, null for the configured default
+     * @param out - the output to write to
+     * @return the number of exported logs
+     */
+    public long export(AdvancedFilteringDto filter, Format format, Integer pageSize, OutputStream out)
+            throws IOException {
+        log.info("Starting advanced filtering export as {}", format);
+
+        int size = Math.min(pageSize == null ? properties.getPageSize() : pageSize,
+                max_elastic_page_size);
+        TimeValue keepAlive = TimeValue.timeValueSeconds(properties.getKeepAliveSeconds());
+        QueryBuilder query = queryCompiler.compile(filter);
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        if (format == Format.CSV) {
+            writeCsvLine(writer, CSV_HEADER);
+        }
+
+        String pitId = searches.call("export-open-pit", filter.getConnector(), (client, options) ->
+                client.openPointInTime(new OpenPointInTimeRequest(queryCompiler.indices(filter))
+                        .indicesOptions(IndexResolver.INDICES_OPTIONS)
+                        .keepAlive(keepAlive),
+                options)).getPointInTimeId();
+        long exported = 0;
+
+        try {
+            Object[] searchAfter = null;
+            while (true) {
+                SearchSourceBuilder source = new SearchSourceBuilder()
+                        .query(query)
+                        .size(size)
+                        .fetchSource(AdvancedFilteringQueryCompiler.SOURCE_FIELDS, null)
+                        .trackTotalHits(false)
+                        .pointInTimeBuilder(new PointInTimeBuilder(pitId).setKeepAlive(keepAlive))
+                        .sort("@timestamp", SortOrder.ASC)
+                        .sort(SortBuilders.pitTiebreaker());
+                if (searchAfter != null) {
+                    source.searchAfter(searchAfter);
+                }
+
+                SearchResponse response = searches.search("export-page", filter.getConnector(),
+                        new SearchRequest().source(source));
+                // the id may change between requests, always use the latest one
+                pitId = response.pointInTimeId();
+
+                SearchHit[] hits = response.getHits().getHits();
+                for (SearchHit hit : hits) {
+                    AdvancedFilteringResult result =
+                            converter.read(AdvancedFilteringResult.class, DocumentAdapters.from(hit));
+                    if (format == Format.CSV) {
+                        writeCsvLine(writer, toCsvValues(result));
+                    } else {
+                        writer.write(objectMapper.writeValueAsString(result));
+                        writer.write('\n');
+                    }
+                }
+                writer.flush();
+                exported += hits.length;
+                log.debug("exported {} logs", exported);
+
+                if (hits.length < size) {
+                    break;
+                }
+                searchAfter = hits[hits.length - 1].getSortValues();
+            }
+        } finally {
+            closePointInTime(pitId, filter.getConnector());
+        }
+
+        log.info("Advanced filtering export finished, {} logs", exported);
+        return exported;
+    }
+
+    private void closePointInTime(String pitId, String connector) {
+        try {
+            searches.call("export-close-pit", connector, (client, options) ->
+                    client.closePointInTime(new ClosePointInTimeRequest(pitId), options));
+        } catch (Exception e) {
+            // it expires anyway after the keep alive
+            log.warn("Could not close point in time: {}", e.getMessage());
+        }
+    }
+
+    private List<String> toCsvValues(AdvancedFilteringResult result) {
+        return Arrays.asList(
+                result.getTimestamp(),
+                result.getConnector(),
+                result.getRequestMethod(),
+                result.getPath(),
+                result.getContentLength(),
+                result.getResponseCode(),
+                result.getBytesSent(),
+                result.getClientIP(),
+                result.getOs(),
+                result.getBrowser(),
+                result.getCountryCode(),
+                result.getCityName());
+    }
+
+    private void writeCsvLine(Writer writer, List<String> values) throws IOException {
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write(escapeCsv(values.get(i)));
+        }
+        writer.write("\r\n");
+    }
+
+    private String escapeCsv(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.contains(",") || value.contains("\"") || value.contains("\n") || value.contains("\r")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+}
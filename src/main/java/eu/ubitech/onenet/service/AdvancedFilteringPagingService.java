@@ -0,0 +1,187 @@
+package eu.ubitech.onenet.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import eu.ubitech.onenet.config.PropertiesConfiguration.PagingProperties;
+import eu.ubitech.onenet.dto.AdvancedFilteringDto;
+import eu.ubitech.onenet.dto.AdvancedFilteringPageDto;
+import eu.ubitech.onenet.exceptions.CursorExpiredException;
+import eu.ubitech.onenet.exceptions.InternalErrorException;
+import eu.ubitech.onenet.exceptions.InvalidParameterException;
+import eu.ubitech.onenet.model.AdvancedFilteringResult;
+import java.util.Base64;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.search.ClosePointInTimeRequest;
+import org.elasticsearch.action.search.OpenPointInTimeRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.PointInTimeBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.convert.ElasticsearchConverter;
+import org.springframework.data.elasticsearch.core.document.DocumentAdapters;
+import org.springframework.stereotype.Service;
+
+/**
+ * Pages through the advanced filtering results, newest first.
+ *
+ * The first page opens a point in time, so that all pages see the same snapshot of the logs. The
+ * cursor returned with each page holds the point in time id and the sort values of the last log,
+ * and the next page continues with search_after from there. Every page costs the same no matter
+ * how deep it is. The point in time is closed when the last page is served, otherwise it expires
+ * after `monitoring.paging.keep-alive-seconds` without requests.
+ *
+ * The cursor does not hold the filters, the client sends the same filters with every page.
+ * A cursor whose point in time expired gets a 410, a cursor elastic cannot read a 400 and any
+ * other failure a 500, never an empty page that would look like the end of the results.
+ */
+@Slf4j
+@Service
+public class AdvancedFilteringPagingService {
+
+
+    private final SearchInstrumentationService searches;
+    private final ElasticsearchConverter converter;
+    private final AdvancedFilteringQueryCompiler queryCompiler;
+    private final ObjectMapper objectMapper;
+    private final PagingProperties properties;
+
+    public AdvancedFilteringPagingService(
+            SearchInstrumentationService searches,
+            ElasticsearchOperations elasticsearchOperations,
+            AdvancedFilteringQueryCompiler queryCompiler,
+            ObjectMapper objectMapper,
+            PropertiesConfiguration config) {
+        this.searches = searches;
+        this.converter = elasticsearchOperations.getElasticsearchConverter();
+        this.queryCompiler = queryCompiler;
+        this.objectMapper = objectMapper;
+        this.properties = config.getMonitoring().getPaging();
+    }
+
+    /**
+     * Function that returns one page of the logs matching the filter
+     *
+     * @param filter - the advanced filtering filters
+     * @param cursor - cursor of the previous page, null for the first page
+     * @param pageSize - logs per page, null for the configured default
+     * @return AdvancedFilteringPageDto
+     */
+    public AdvancedFilteringPageDto getPage(AdvancedFilteringDto filter, String cursor, Integer pageSize) {
+        int size = pageSize == null ? properties.getDefaultPageSize() : pageSize;
+        if (size <= 0 || size > properties.getMaxPageSize()) {
+            throw new InvalidParameterException();
+        }
+        Cursor previous = cursor == null ? null : decode(cursor);
+
+        AdvancedFilteringPageDto page = new AdvancedFilteringPageDto();
+        TimeValue keepAlive = TimeValue.timeValueSeconds(properties.getKeepAliveSeconds());
+
+        // opened by this call, closed again if the search fails
+        String openedPitId = null;
+        try {
+            if (previous == null) {
+                openedPitId = searches.call("paging-open-pit", filter.getConnector(), (client, options) ->
+                        client.openPointInTime(new OpenPointInTimeRequest(queryCompiler.indices(filter))
+                                .indicesOptions(IndexResolver.INDICES_OPTIONS)
+                                .keepAlive(keepAlive),
+                        options)).getPointInTimeId();
+            }
+            String pitId = previous != null ? previous.getPit() : openedPitId;
+
+            SearchSourceBuilder source = new SearchSourceBuilder()
+                    .query(queryCompiler.compile(filter))
+                    .size(size)
+                    .fetchSource(AdvancedFilteringQueryCompiler.SOURCE_FIELDS, null)
+                    .trackTotalHits(false)
+                    .pointInTimeBuilder(new PointInTimeBuilder(pitId).setKeepAlive(keepAlive))
+                    .sort("@timestamp", SortOrder.DESC)
+                    .sort(SortBuilders.pitTiebreaker());
+            if (previous != null) {
+                source.searchAfter(previous.getAfter());
+            }
+
+            SearchResponse response = searches.search("paging-page", filter.getConnector(),
+                    new SearchRequest().source(source));
+            SearchHit[] hits = response.getHits().getHits();
+            for (SearchHit hit : hits) {
+                page.getResults().add(converter.read(AdvancedFilteringResult.class, DocumentAdapters.from(hit)));
+            }
+
+            if (hits.length < size) {
+                closePointInTime(response.pointInTimeId(), filter.getConnector());
+            } else {
+                Cursor next = new Cursor();
+                next.setPit(response.pointInTimeId());
+                next.setAfter(hits[hits.length - 1].getSortValues());
+                page.setCursor(encode(next));
+            }
+        } catch (Exception e) {
+            log.error(e.getMessage());
+            if (openedPitId != null) {
+                closePointInTime(openedPitId, filter.getConnector());
+            }
+            // an empty page would read as the end of the results
+            throw toPagingException(e, previous != null);
+        }
+
+        return page;
+    }
+
+    private RuntimeException toPagingException(Exception e, boolean hasCursor) {
+        if (hasCursor && e instanceof ElasticsearchStatusException) {
+            RestStatus status = ((ElasticsearchStatusException) e).status();
+            if (status == RestStatus.NOT_FOUND) {
+                // the point in time of the cursor expired or never existed
+                return new CursorExpiredException();
+            }
+            if (status == RestStatus.BAD_REQUEST) {
+                // eg a point in time id or sort values that elastic cannot parse
+                return new InvalidParameterException();
+            }
+        }
+        return new InternalErrorException();
+    }
+
+    private void closePointInTime(String pitId, String connector) {
+        try {
+            searches.call("paging-close-pit", connector, (client, options) ->
+                    client.closePointInTime(new ClosePointInTimeRequest(pitId), options));
+        } catch (Exception e) {
+            // it expires anyway after the keep alive
+            log.warn("Could not close point in time: {}", e.getMessage());
+        }
+    }
+
+    private String encode(Cursor cursor) throws Exception {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(objectMapper.writeValueAsBytes(cursor));
+    }
+
+    private Cursor decode(String cursor) {
+        try {
+            Cursor decoded = objectMapper.readValue(Base64.getUrlDecoder().decode(cursor), Cursor.class);
+            if (decoded.getPit() == null || decoded.getAfter() == null || decoded.getAfter().length == 0) {
+                throw new InvalidParameterException();
+            }
+            return decoded;
+        } catch (Exception e) {
+            log.debug("invalid cursor {}: {}", cursor, e.getMessage());
+            throw new InvalidParameterException();
+        }
+    }
+
+    @Getter
+    @Setter
+    static class Cursor {
+        private String pit;
+        private Object[] after;
+    }
+}
@@ -0,0 +1,122 @@
+package eu.ubitech.onenet.service;
+
+import eu.ubitech.onenet.dto.AdvancedFilteringDto;
+import java.time.Instant;
+import java.util.List;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.springframework.stereotype.Component;
+
+/**
+ * Turns the filters of an AdvancedFilteringDto into the elastic query used by the advanced
+ * filtering search, export and paging
+ */
+@Slf4j
+@Component
+public class AdvancedFilteringQueryCompiler {
+
+    // The field we use to distinguish between connectors
+    private static final String CONNECTOR_ID_FIELD = "headers.x_forwarded_for.keyword";
+
+    // The fields of AdvancedFilteringResult, only these are fetched from the logs
+    public static final String[] SOURCE_FIELDS = new String[]{
+            "@timestamp",
+            "headers.x_forwarded_for", // Connector ID field
+            "verb",
+            "request",
+            "headers.content_length",
+            "response",
+            "bytes",
+            "client_geoip.ip",
+            "user_agent.os",
+            "user_agent.name",
+            "client_geoip.country_code2",
+            "client_geoip.city_name"
+    };
+
+    private final IndexResolver indexResolver;
+
+    public AdvancedFilteringQueryCompiler(IndexResolver indexResolver) {
+        this.indexResolver = indexResolver;
+    }
+
+    /**
+     * Function that returns the indices to search for the given filters, the daily indices of
+     * the date range, or connectors-* without a dateFrom
+     *
+     * @param filter - the advanced filtering filters
+     * @return String[]
+     */
+    public String[] indices(AdvancedFilteringDto filter) {
+        return indexResolver.resolve(
+                filter.dateFrom == null ? null : Instant.parse(filter.dateFrom),
+                filter.dateTo == null ? null : Instant.parse(filter.dateTo));
+    }
+
+    /**
+     * Function that builds the query of the given filters
+     *
+     * Every clause goes in filter context, nothing reads the scores of these logs. Filter
+     * clauses are not scored and elastic can cache them per segment, so repeating the same
+     * filters (eg paging or refreshing the table) is answered from the query cache.
+     *
+     * @param filter - the advanced filtering filters
+     * @return BoolQueryBuilder
+     */
+    public BoolQueryBuilder compile(AdvancedFilteringDto filter) {
+        // Make sure we ask for logs where these fields exist
+        BoolQueryBuilder query = QueryBuilders.boolQuery()
+            .filter(QueryBuilders.existsQuery("headers"))
+            .filter(QueryBuilders.existsQuery("user_agent"))
+            .filter(QueryBuilders.existsQuery("client_geoip"));
+
+        // >>> connector filter
+        if (filter.connector != null) {
+            query.filter(QueryBuilders.termQuery(CONNECTOR_ID_FIELD, filter.connector));
+        }
+
+        // >>> dateFrom and dateTo filter, a missing bound means "beginning of time" or now
+        log.debug("dateFrom and dateTo: {} {}", filter.dateFrom, filter.dateTo);
+        if (filter.dateFrom != null || filter.dateTo != null) {
+            RangeQueryBuilder dateRangeQuery = QueryBuilders.rangeQuery("@timestamp");
+            if (filter.dateFrom != null) {
+                dateRangeQuery.gte(Instant.parse(filter.dateFrom).toString());
+            }
+            if (filter.dateTo != null) {
+                dateRangeQuery.lte(Instant.parse(filter.dateTo).toString());
+            }
+            query.filter(dateRangeQuery);
+        }
+
+        // >>> bytesSentMin and bytesSentMax filter
+        log.debug("bytesSentMin and bytesSentMax: {} {}", filter.bytesSentMin, filter.bytesSentMax);
+        if (filter.bytesSentMin != null || filter.bytesSentMax != null) {
+            RangeQueryBuilder bytesRangeQuery = QueryBuilders.rangeQuery("bytes");
+            if (filter.bytesSentMin != null) {
+                bytesRangeQuery.gte(Integer.parseInt(filter.bytesSentMin));
+            }
+            if (filter.bytesSentMax != null) {
+                bytesRangeQuery.lte(Integer.parseInt(filter.bytesSentMax));
+            }
+            query.filter(bytesRangeQuery);
+        }
+
+        // >>> clientIPs, requestMethods, responseCodes and countries filters
+        addTermsFilter(query, "client_geoip.ip.keyword", filter.clientIPs);
+        addTermsFilter(query, "verb.keyword", filter.requestMethods);
+        addTermsFilter(query, "response.keyword", filter.responseCodes);
+        addTermsFilter(query, "client_geoip.country_code2.keyword", filter.countries);
+
+        log.debug("query is {}", query);
+
+        return query;
+    }
+
+    private void addTermsFilter(BoolQueryBuilder query, String field, List<String> values) {
+        if (values != null && !values.isEmpty()) {
+            query.filter(QueryBuilders.termsQuery(field, values));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package eu.ubitech.onenet.service;
+
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import eu.ubitech.onenet.config.PropertiesConfiguration.AnalyticsClientProperties;
+import eu.ubitech.onenet.exceptions.AnalyticsCommunicationException;
+import eu.ubitech.onenet.model.AnomalyPrediction;
+import java.time.Duration;
+import java.util.List;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClient.Builder;
+
+/**
+ * Client of the analytics service, shared by the alerts, the anomaly detection and the security
+ * report.
+ *
+ * Each call is a single request whose status and body are read from the same response. Bodies
+ * larger than `analytics-client.max-in-memory-size` bytes and calls slower than
+ * `analytics-client.timeout-seconds` fail instead of piling up.
+ */
+@Slf4j
+@Service
+public class AnalyticsClient {
+
+    private static final String PREDICTIONS_PATH = "/api/v1/analytics/anomaly_detection/get_predictions/";
+
+    private final WebClient analyticsClient;
+    private final String analyticsUrl;
+    private final Duration timeout;
+
+    public AnalyticsClient(PropertiesConfiguration config, Builder builder) {
+        AnalyticsClientProperties properties = config.getAnalyticsClient();
+        this.analyticsUrl = config.getAnalyticsUrl();
+        this.timeout = Duration.ofSeconds(properties.getTimeoutSeconds());
+        this.analyticsClient = builder
+                .codecs(codecs -> codecs.defaultCodecs().maxInMemorySize(properties.getMaxInMemorySize()))
+                .build();
+    }
+
+    /**
+     * Function that gets the anomaly detection predictions of the last minutes
+     *
+     * @param minutes - how many minutes back the predictions go
+     * @return List<AnomalyPrediction> - one entry per timeslot
+     */
+    public List<AnomalyPrediction> getPredictions(String minutes) {
+        ResponseEntity<List<AnomalyPrediction>> response;
+        ConcurrencyLimitService.backendCalled();
+        try {
+            response = analyticsClient.get()
+                    .uri(analyticsUrl.concat(PREDICTIONS_PATH))
+                    .header("minutes", minutes)
+                    .retrieve()
+                    .toEntityList(AnomalyPrediction.class)
+                    .timeout(timeout)
+                    .block();
+        } catch (Exception e) {
+            log.error("Could not get predictions, Exception: {}", e.getMessage());
+            throw new AnalyticsCommunicationException();
+        }
+
+        if (response == null || response.getStatusCode() != HttpStatus.OK || response.getBody() == null) {
+            log.error("Analytics returned status: {}", response == null ? null : response.getStatusCode());
+            throw new AnalyticsCommunicationException();
+        }
+
+        return response.getBody();
+    }
+}
@@ -0,0 +1,108 @@
+package eu.ubitech.onenet.service;
+
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import eu.ubitech.onenet.config.PropertiesConfiguration.BulkheadProperties;
+import eu.ubitech.onenet.exceptions.QueryTimeoutException;
+import eu.ubitech.onenet.exceptions.ServiceBusyException;
+import eu.ubitech.onenet.service.ConcurrencyLimitService.EndpointClass;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Runs the elastic backed monitoring calls off the servlet threads.
+ *
+ * The controllers return the Mono of run(), so the Tomcat thread is released as soon as the call
+ * is scheduled and a slow elastic only parks the threads of its bulkhead. Each bulkhead is a
+ * bounded elastic scheduler of `threads` threads with at most `queue` waiting calls. A call that
+ * does not fit fails with ServiceBusyException (503), and a call that runs longer than
+ * `timeout-seconds` fails with QueryTimeoutException (504). Logins and the other endpoints never
+ * wait on these threads.
+ *
+ * On the timeout the thread of the call is interrupted. The searches of SearchInstrumentationService
+ * are then aborted in elastic, and the thread and its ConcurrencyLimitService slot are freed at
+ * once. The other blocking calls, eg the spring data counts and the multi searches, only stop
+ * waiting: their request keeps a connection until elastic answers or the socket timeout of
+ * ElasticConfig expires.
+ */
+@Slf4j
+@Service
+public class BulkheadService {
+
+    /**
+     * - CHARTS: the dashboard widgets, connectors and health check
+     * - FILTERING: the advanced filtering search and paging, heavier and less frequent
+     */
+    public enum Bulkhead {
+        CHARTS,
+        FILTERING
+    }
+
+    private final Map<Bulkhead, Scheduler> schedulers = new EnumMap<>(Bulkhead.class);
+    private final Map<Bulkhead, Duration> timeouts = new EnumMap<>(Bulkhead.class);
+    private final ConcurrencyLimitService concurrencyLimits;
+
+    public BulkheadService(PropertiesConfiguration config, ConcurrencyLimitService concurrencyLimits) {
+        this.concurrencyLimits = concurrencyLimits;
+        register(Bulkhead.CHARTS, config.getMonitoring().getBulkheads().getCharts());
+        register(Bulkhead.FILTERING, config.getMonitoring().getBulkheads().getFiltering());
+    }
+
+    private void register(Bulkhead bulkhead, BulkheadProperties properties) {
+        schedulers.put(bulkhead, Schedulers.newBoundedElastic(properties.getThreads(), properties.getQueue(),
+                "bulkhead-" + bulkhead.name().toLowerCase()));
+        timeouts.put(bulkhead, Duration.ofSeconds(properties.getTimeoutSeconds()));
+    }
+
+    /**
+     * Function that runs a blocking call on the threads of a bulkhead
+     *
+     * @param bulkhead - the bulkhead to run on
+     * @param call - the blocking call, eg a NetworkMonitoringService function
+     * @return Mono<T> - the result of the call
+     */
+    public <T> Mono<T> run(Bulkhead bulkhead, Callable<T> call) {
+        // within the bulkhead threads, the adaptive limit of ConcurrencyLimitService
+        EndpointClass endpointClass = bulkhead == Bulkhead.CHARTS ? EndpointClass.CHARTS : EndpointClass.FILTERING;
+        AtomicBoolean cancelled = new AtomicBoolean();
+        return Mono.fromCallable(() -> {
+                try {
+                    return concurrencyLimits.call(endpointClass, call);
+                } catch (Exception e) {
+                    if (cancelled.get()) {
+                        // interrupted by the timeout or the client going away, nobody waits for it
+                        log.debug("Cancelled call on bulkhead {} ended with {}", bulkhead, e.toString());
+                        return null;
+                    }
+                    throw e;
+                }
+            })
+            .subscribeOn(schedulers.get(bulkhead))
+            // before subscribeOn is cancelled, which interrupts the thread of the call
+            .doOnCancel(() -> cancelled.set(true))
+            .timeout(timeouts.get(bulkhead))
+            .onErrorMap(RejectedExecutionException.class, e -> {
+                log.warn("Bulkhead {} is full", bulkhead);
+                return new ServiceBusyException();
+            })
+            .onErrorMap(TimeoutException.class, e -> {
+                log.warn("Call on bulkhead {} timed out", bulkhead);
+                return new QueryTimeoutException();
+            });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        schedulers.values().forEach(Scheduler::dispose);
+    }
+}
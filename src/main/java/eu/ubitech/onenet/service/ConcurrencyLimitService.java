@@ -0,0 +1,212 @@
+package eu.ubitech.onenet.service;
+
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import eu.ubitech.onenet.config.PropertiesConfiguration.ConcurrencyLimitProperties;
+import eu.ubitech.onenet.config.PropertiesConfiguration.ConcurrencyProperties;
+import eu.ubitech.onenet.exceptions.ServiceBusyException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+/**
+ * Caps the elastic backed calls running at the same time, per class of endpoint, so that a burst
+ * of dashboard loads cannot put hundreds of aggregations in elastic at once.
+ *
+ * The cap adapts to the latency of the calls, like the TCP Vegas congestion control: the lowest
+ * latency seen is taken as the latency of an idle elastic, and the calls queued inside elastic are
+ * estimated as limit * (1 - minLatency / latency). Few queued calls raise the limit, many lower
+ * it, and a failed call lowers it by 10%. The lowest latency is measured again every
+ * `probe-interval` calls, so that the limit follows elastic when it gets slower for good.
+ *
+ * Only the calls that sent a request to elastic or to the analytics service are measured. The
+ * connectors list, the health check and the cached widgets are answered from memory in
+ * microseconds, and taken as the idle latency they would make every real query look queued.
+ * SearchInstrumentationService and AnalyticsClient mark the call running on their thread with
+ * backendCalled(); requests sent from other threads, eg the PARALLEL monthly counts, do not mark
+ * it and the call is then not measured.
+ *
+ * A call over the limit waits up to `queue-timeout-ms` for a slot and is then rejected with
+ * ServiceBusyException (503 with Retry-After). The limits are published as the
+ * `concurrency.limit` gauge, the running calls as `concurrency.inflight` and the rejections as
+ * `concurrency.rejected`, tagged with the endpoint class.
+ */
+@Slf4j
+@Service
+public class ConcurrencyLimitService {
+
+    /**
+     * - CHARTS: the dashboard widgets, connectors and health check
+     * - FILTERING: the advanced filtering search, paging and export
+     * - ANALYTICS: anomaly detection and the security report
+     */
+    public enum EndpointClass {
+        CHARTS,
+        FILTERING,
+        ANALYTICS
+    }
+
+    // whether the call running on this thread has sent a request to elastic or analytics, null outside a call
+    private static final ThreadLocal<boolean[]> calledBackend = new ThreadLocal<>();
+
+    private final Map<EndpointClass, Limiter> limiters = new EnumMap<>(EndpointClass.class);
+    private final boolean enabled;
+
+    public ConcurrencyLimitService(PropertiesConfiguration config, MeterRegistry meterRegistry) {
+        ConcurrencyProperties properties = config.getMonitoring().getConcurrency();
+        this.enabled = properties.isEnabled();
+        limiters.put(EndpointClass.CHARTS, new Limiter(EndpointClass.CHARTS, properties.getCharts(), meterRegistry));
+        limiters.put(EndpointClass.FILTERING, new Limiter(EndpointClass.FILTERING, properties.getFiltering(), meterRegistry));
+        limiters.put(EndpointClass.ANALYTICS, new Limiter(EndpointClass.ANALYTICS, properties.getAnalytics(), meterRegistry));
+    }
+
+    /**
+     * Function that runs a blocking call within the limit of its endpoint class
+     *
+     * @param endpointClass - class of the endpoint the call serves
+     * @param call - the blocking call, eg a NetworkMonitoringService function
+     * @return the result of the call
+     */
+    public <T> T call(EndpointClass endpointClass, Callable<T> call) throws Exception {
+        if (!enabled) {
+            return call.call();
+        }
+
+        Limiter limiter = limiters.get(endpointClass);
+        limiter.acquire();
+        boolean[] previous = calledBackend.get();
+        boolean[] called = new boolean[1];
+        calledBackend.set(called);
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T result = call.call();
+            failed = false;
+            return result;
+        } finally {
+            calledBackend.set(previous);
+            limiter.release(System.nanoTime() - start, failed, called[0]);
+        }
+    }
+
+    /**
+     * Function that marks the call running on this thread as one that reached elastic or the
+     * analytics service, so that its latency is taken into account
+     */
+    public static void backendCalled() {
+        boolean[] called = calledBackend.get();
+        if (called != null) {
+            called[0] = true;
+        }
+    }
+
+    static class Limiter {
+
+        private final EndpointClass endpointClass;
+        private final ConcurrencyLimitProperties properties;
+        private final Counter rejected;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition released = lock.newCondition();
+        // guarded by lock
+        private volatile double limit;
+        private volatile int inFlight;
+        private long minLatencyNanos = Long.MAX_VALUE;
+        private int samples;
+
+        Limiter(EndpointClass endpointClass, ConcurrencyLimitProperties properties, MeterRegistry meterRegistry) {
+            this.endpointClass = endpointClass;
+            this.properties = properties;
+            this.limit = properties.getInitialLimit();
+
+            String tag = endpointClass.name().toLowerCase();
+            Gauge.builder("concurrency.limit", this, l -> (int) l.limit)
+                .description("Calls to elastic allowed at the same time")
+                .tag("endpoint", tag)
+                .register(meterRegistry);
+            Gauge.builder("concurrency.inflight", this, l -> l.inFlight)
+                .description("Calls to elastic running")
+                .tag("endpoint", tag)
+                .register(meterRegistry);
+            this.rejected = Counter.builder("concurrency.rejected")
+                .description("Calls rejected over the concurrency limit")
+                .tag("endpoint", tag)
+                .register(meterRegistry);
+        }
+
+        void acquire() throws InterruptedException {
+            long waitNanos = TimeUnit.MILLISECONDS.toNanos(properties.getQueueTimeoutMs());
+            lock.lock();
+            try {
+                while (inFlight >= (int) limit) {
+                    if (waitNanos <= 0) {
+                        rejected.increment();
+                        log.warn("Concurrency limit {} of {} reached", (int) limit, endpointClass);
+                        throw new ServiceBusyException();
+                    }
+                    waitNanos = released.awaitNanos(waitNanos);
+                }
+                inFlight++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // sampled is false for calls answered from memory, they say nothing about the backend latency
+        void release(long latencyNanos, boolean failed, boolean sampled) {
+            lock.lock();
+            try {
+                int running = inFlight;
+                inFlight--;
+                if (sampled) {
+                    update(latencyNanos, failed, running);
+                }
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int getLimit() {
+            return (int) limit;
+        }
+
+        // the Vegas update, running is the number of calls in flight when this one ended
+        void update(long latencyNanos, boolean failed, int running) {
+            if (++samples >= properties.getProbeInterval()) {
+                samples = 0;
+                minLatencyNanos = latencyNanos;
+            }
+            minLatencyNanos = Math.min(minLatencyNanos, latencyNanos);
+
+            double newLimit = limit;
+            double step = Math.max(1, Math.log10(limit));
+            if (failed) {
+                newLimit = limit * 0.9;
+            } else {
+                double queued = limit * (1 - (double) minLatencyNanos / Math.max(latencyNanos, 1));
+                if (queued < 3 * step) {
+                    // only grow when the limit is used, an idle limit says nothing about elastic
+                    if (running * 2 >= limit) {
+                        newLimit = limit + step;
+                    }
+                } else if (queued > 6 * step) {
+                    newLimit = limit - step;
+                }
+            }
+
+            newLimit = Math.max(properties.getMinLimit(), Math.min(properties.getMaxLimit(), newLimit));
+            if ((int) newLimit != (int) limit) {
+                log.debug("Concurrency limit of {} changed from {} to {}", endpointClass, (int) limit, (int) newLimit);
+            }
+            limit = newLimit;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package eu.ubitech.onenet.service;
+
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import eu.ubitech.onenet.config.PropertiesConfiguration.ConnectorRegistryProperties;
+import eu.ubitech.onenet.model.HealthCheckResult;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.ParsedComposite;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.metrics.ParsedMax;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Keeps in memory the connectors that sent logs within the lookback window, along with the
+ * timestamp of their last log.
+ *
+ * The registry is refreshed in the background every `monitoring.connector-registry.refresh-seconds`
+ * and the connector list and health check endpoints answer from the last snapshot. A refresh pages
+ * through all the connectors with a composite aggregation, so there is no limit on how many are
+ * returned, and only looks at the logs of the last `lookback-days`.
+ */
+@Slf4j
+@Service
+public class ConnectorRegistryService {
+
+    private static final String CONNECTOR_ID_FIELD = "headers.x_forwarded_for.keyword";
+
+    private final SearchInstrumentationService searches;
+    private final ConnectorRegistryProperties properties;
+    private final IndexResolver indexResolver;
+
+    // replaced as a whole on every refresh, never modified
+    private volatile List<HealthCheckResult> snapshot;
+
+    public ConnectorRegistryService(SearchInstrumentationService searches, PropertiesConfiguration config,
+            IndexResolver indexResolver) {
+        this.searches = searches;
+        this.properties = config.getMonitoring().getConnectorRegistry();
+        this.indexResolver = indexResolver;
+    }
+
+    /**
+     * Function that returns the connectors along with the timestamp of their last log
+     *
+     * @return List<HealthCheckResult>
+     */
+    public List<HealthCheckResult> getHealthCheck() throws IOException {
+        List<HealthCheckResult> current = snapshot;
+        if (current == null) {
+            // a request came before the first background refresh
+            current = loadIfMissing();
+        }
+        return current;
+    }
+
+    /**
+     * Function that returns the ids of the connectors
+     *
+     * @return List<String>
+     */
+    public List<String> getConnectors() throws IOException {
+        return getHealthCheck().stream()
+            .map(HealthCheckResult::getConnector)
+            .collect(Collectors.toList());
+    }
+
+    @Scheduled(fixedDelayString = "PT${monitoring.connector-registry.refresh-seconds:60}S")
+    public void refresh() {
+        try {
+            snapshot = searchConnectors();
+        } catch (Exception e) {
+            // keep serving the previous snapshot
+            log.error(e.getMessage());
+        }
+    }
+
+    private synchronized List<HealthCheckResult> loadIfMissing() throws IOException {
+        if (snapshot == null) {
+            snapshot = searchConnectors();
+        }
+        return snapshot;
+    }
+
+    private List<HealthCheckResult> searchConnectors() throws IOException {
+        String agg_name = "per_connector";
+        String sub_agg_name = "latest_timestamp";
+        Instant from = Instant.now().minus(properties.getLookbackDays(), ChronoUnit.DAYS);
+
+        List<HealthCheckResult> healthCheckResults = new ArrayList<>();
+        Map<String, Object> afterKey = null;
+
+        do {
+            CompositeAggregationBuilder aggregation = AggregationBuilders
+                .composite(agg_name, List.of(new TermsValuesSourceBuilder("connector").field(CONNECTOR_ID_FIELD)))
+                .size(properties.getPageSize())
+                .subAggregation(AggregationBuilders.max(sub_agg_name).field("@timestamp"));
+            if (afterKey != null) {
+                aggregation.aggregateAfter(afterKey);
+            }
+
+            SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+                .size(0)
+                .query(QueryBuilders.boolQuery()
+                       .filter(QueryBuilders.rangeQuery("@timestamp").gte(from.toString())))
+                .aggregation(aggregation);
+            SearchRequest searchRequest = new SearchRequest(indexResolver.resolve(from, null))
+                .indicesOptions(IndexResolver.INDICES_OPTIONS)
+                .source(searchSourceBuilder);
+
+            SearchResponse searchResponse = searches.search("connector-registry", null, searchRequest);
+            ParsedComposite results = searchResponse.getAggregations().get(agg_name);
+
+            // For each connector, populate healthCheckResult
+            results.getBuckets().forEach(b -> {
+                ParsedMax latestTimestamp = b.getAggregations().get(sub_agg_name);
+
+                HealthCheckResult healthCheckResult = new HealthCheckResult();
+                healthCheckResult.setConnector((String) b.getKey().get("connector"));
+                healthCheckResult.setTimestamp((long) latestTimestamp.getValue());
+                healthCheckResults.add(healthCheckResult);
+            });
+
+            afterKey = results.getBuckets().isEmpty() ? null : results.afterKey();
+        } while (afterKey != null);
+
+        log.debug("connector registry refreshed, {} connectors", healthCheckResults.size());
+        return Collections.unmodifiableList(healthCheckResults);
+    }
+}
@@ -0,0 +1,139 @@
+package eu.ubitech.onenet.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.aggregations.bucket.histogram.LongBounds;
+import org.elasticsearch.search.aggregations.bucket.histogram.ParsedDateHistogram;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.springframework.stereotype.Service;
+
+/**
+ * Keeps the hourly buckets of the last 24 hours per connector in memory and updates them
+ * incrementally.
+ *
+ * Closed hours never change, so after the first full query only the hours from the watermark
+ * (the hour that was still open at the previous call) until now are queried. The window rolls
+ * forward when the hour changes. A full re-sync is done only on a cold start, or when the
+ * watermark fell out of the window (eg no one asked for that connector for more than a day).
+ *
+ * Logs may reach elastic a little after their timestamp, so the previous hour is re-queried
+ * for `monitoring.histogram-settle-seconds` after it closes.
+ */
+@Slf4j
+@Service
+public class HourlyHistogramService {
+
+    private static final String CONNECTOR_ID_FIELD = "headers.x_forwarded_for.keyword";
+    private static final int WINDOW_HOURS = 24;
+
+    private final SearchInstrumentationService searches;
+    private final PropertiesConfiguration config;
+    private final IndexResolver indexResolver;
+    // Windows of connectors nobody asks for are evicted
+    private final Cache<String, HourlyWindow> windows = Caffeine.newBuilder()
+            .maximumSize(1000)
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
+
+    public HourlyHistogramService(SearchInstrumentationService searches, PropertiesConfiguration config,
+            IndexResolver indexResolver) {
+        this.searches = searches;
+        this.config = config;
+        this.indexResolver = indexResolver;
+    }
+
+    /**
+     * Function that returns the hourly counts of the last 24 hours, from the hour 24 hours ago
+     * up to the current open hour
+     *
+     * @param connector - connector id, null for all connectors
+     * @return hit count per hour start
+     */
+    public NavigableMap<Instant, Long> last24Hours(String connector) throws IOException {
+        Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        Instant windowStart = now.minus(WINDOW_HOURS, ChronoUnit.HOURS).truncatedTo(ChronoUnit.HOURS);
+
+        if (!config.getMonitoring().isIncrementalHistogram()) {
+            return searchHourly(connector, windowStart, now);
+        }
+
+        HourlyWindow window = windows.get(connector == null ? "*" : connector, k -> new HourlyWindow());
+        synchronized (window) {
+            if (window.watermark == null || window.watermark.isBefore(windowStart)) {
+                log.debug("full sync of hourly histogram for connector [{}]", connector);
+                window.buckets = searchHourly(connector, windowStart, now);
+            } else {
+                log.debug("delta sync of hourly histogram for connector [{}] since {}",
+                        connector, window.watermark);
+                window.buckets.putAll(searchHourly(connector, window.watermark, now));
+                window.buckets.headMap(windowStart).clear();
+            }
+            window.watermark = now
+                    .minus(config.getMonitoring().getHistogramSettleSeconds(), ChronoUnit.SECONDS)
+                    .truncatedTo(ChronoUnit.HOURS);
+
+            return Collections.unmodifiableNavigableMap(new TreeMap<>(window.buckets));
+        }
+    }
+
+    private NavigableMap<Instant, Long> searchHourly(String connector, Instant from, Instant to)
+            throws IOException {
+        String agg_name = "query_per_hour";
+
+        // do not make changes in any of the parameters without fully understanding the consequences
+        DateHistogramAggregationBuilder aggregation = AggregationBuilders
+                .dateHistogram(agg_name)
+                .field("@timestamp")
+                .fixedInterval(DateHistogramInterval.HOUR)
+                .minDocCount(0) // this along with the below, means that the empty buckets will be returned even if they are empty
+                .missing(0)
+                .extendedBounds(new LongBounds(from.toString(), to.toString()));
+
+        // both ranges should be set, here and the aggregation as extended bounds
+        BoolQueryBuilder query = QueryBuilders.boolQuery()
+                .filter(QueryBuilders.rangeQuery("@timestamp")
+                        .lte(to.toString())
+                        .gte(from.toString()));
+        if (connector != null) {
+            query.filter(QueryBuilders.termQuery(CONNECTOR_ID_FIELD, connector));
+        }
+
+        // the last 24 hours span two daily indices, eg half day now half day yesterday
+        SearchRequest searchRequest = new SearchRequest(indexResolver.resolve(from, to))
+                .indicesOptions(IndexResolver.INDICES_OPTIONS);
+        searchRequest.source(new SearchSourceBuilder().size(0).query(query).aggregation(aggregation));
+
+        SearchResponse searchResponse = searches.search("hourly-histogram", connector, searchRequest);
+        ParsedDateHistogram dateGroupBy = searchResponse.getAggregations().get(agg_name);
+
+        NavigableMap<Instant, Long> buckets = new TreeMap<>();
+        dateGroupBy.getBuckets().forEach(b ->
+                buckets.put(((ZonedDateTime) b.getKey()).toInstant(), b.getDocCount()));
+
+        log.debug("hourly histogram from {} to {}: {}", from, to, buckets);
+        return buckets;
+    }
+
+    private static class HourlyWindow {
+        // start of the oldest hour that may still change
+        private Instant watermark;
+        private NavigableMap<Instant, Long> buckets = new TreeMap<>();
+    }
+}
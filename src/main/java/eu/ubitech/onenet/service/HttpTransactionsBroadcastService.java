@@ -0,0 +1,131 @@
+package eu.ubitech.onenet.service;
+
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import eu.ubitech.onenet.dto.HttpTransactionsDto;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * Fans out the live 24h HTTP transactions histogram to every SSE subscriber.
+ *
+ * There is one hub per connector (and one for all connectors). Each hub runs the elastic query
+ * once per `min-interval` and sends the same result to all of its emitters. When the last
+ * emitter of a hub completes, times out or fails, the hub stops polling and is removed.
+ */
+@Slf4j
+@Service
+public class HttpTransactionsBroadcastService {
+
+    // Hub key used when no connector is given
+    private static final String ALL_CONNECTORS = "";
+
+    private final NetworkMonitoringService service;
+    private final PropertiesConfiguration config;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, Hub> hubs = new ConcurrentHashMap<>();
+
+    public HttpTransactionsBroadcastService(
+            NetworkMonitoringService service,
+            PropertiesConfiguration config) {
+        this.service = service;
+        this.config = config;
+        this.scheduler = Executors.newScheduledThreadPool(config.getSsePoolSize());
+    }
+
+    /**
+     * Registers a new SSE subscriber for the given connector, starting the hub if needed
+     *
+     * @param connector - connector id, null or empty for all connectors
+     * @return SseEmitter
+     */
+    public SseEmitter subscribe(String connector) {
+        String key = connector == null ? ALL_CONNECTORS : connector;
+        SseEmitter emitter = new SseEmitter();
+
+        emitter.onCompletion(() -> unsubscribe(key, emitter));
+        emitter.onTimeout(() -> unsubscribe(key, emitter));
+        emitter.onError(e -> unsubscribe(key, emitter));
+
+        Hub hub = hubs.compute(key, (k, existing) -> {
+            Hub h = existing == null ? new Hub(k) : existing;
+            h.emitters.add(emitter);
+            if (h.task == null) {
+                h.task = scheduler.scheduleWithFixedDelay(() -> broadcast(h),
+                        0, config.getMinInterval(), TimeUnit.SECONDS);
+            }
+            return h;
+        });
+        log.debug("subscribed to connector [{}], subscribers: {}",
+                key.isEmpty() ? "*" : key, hub.emitters.size());
+
+        // Late subscribers get the last result right away instead of waiting for the next tick
+        HttpTransactionsDto last = hub.lastResult;
+        if (last != null) {
+            send(hub, emitter, last);
+        }
+
+        return emitter;
+    }
+
+    private void unsubscribe(String key, SseEmitter emitter) {
+        hubs.computeIfPresent(key, (k, hub) -> {
+            hub.emitters.remove(emitter);
+            if (!hub.emitters.isEmpty()) {
+                return hub;
+            }
+            log.debug("no subscribers left for connector [{}], stop polling", k.isEmpty() ? "*" : k);
+            hub.task.cancel(false);
+            return null;
+        });
+    }
+
+    private void broadcast(Hub hub) {
+        try {
+            HttpTransactionsDto result = service.query24hourEntriesCount(
+                    hub.key.isEmpty() ? null : hub.key);
+            hub.lastResult = result;
+            hub.emitters.forEach(emitter -> send(hub, emitter, result));
+        } catch (Exception e) {
+            // never let an exception escape, it would cancel the periodic task silently
+            log.error("Could not broadcast http transactions: {}", e.getMessage());
+        }
+    }
+
+    private void send(Hub hub, SseEmitter emitter, HttpTransactionsDto result) {
+        try {
+            emitter.send(SseEmitter.event().data(result));
+        } catch (Exception e) {
+            log.debug("dropping subscriber of connector [{}]: {}", hub.key, e.getMessage());
+            emitter.completeWithError(e);
+            unsubscribe(hub.key, emitter);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        hubs.values().forEach(hub -> hub.emitters.forEach(SseEmitter::complete));
+        hubs.clear();
+    }
+
+    private static class Hub {
+        private final String key;
+        private final Set<SseEmitter> emitters = new CopyOnWriteArraySet<>();
+        private ScheduledFuture<?> task;
+        private volatile HttpTransactionsDto lastResult;
+
+        private Hub(String key) {
+            this.key = key;
+        }
+    }
+}
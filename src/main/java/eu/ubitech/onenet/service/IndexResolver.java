@@ -0,0 +1,126 @@
+package eu.ubitech.onenet.service;
+
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import eu.ubitech.onenet.config.PropertiesConfiguration.IndexResolverProperties;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Turns a time range into the daily connectors-yyyy.MM.dd indices that overlap it, so that a
+ * search over the last hour hits one or two indices instead of every shard of connectors-*.
+ * Logstash names the daily indices after the UTC day of @timestamp.
+ *
+ * The names of the existing indices are listed every `monitoring.index-resolver.refresh-seconds`
+ * and days without an index are left out. Days from the last listing on are always kept, since
+ * their index may have been created since. The searches use INDICES_OPTIONS, which ignores the
+ * indices that do not exist.
+ */
+@Slf4j
+@Service
+public class IndexResolver {
+
+    private static final String index_base = "connectors-";
+    private static final String index_wild = "connectors-*";
+    // ignore_unavailable, so that a missing daily index is skipped instead of failing the search
+    public static final IndicesOptions INDICES_OPTIONS = IndicesOptions.lenientExpandOpen();
+
+    private final RestHighLevelClient client;
+    private final IndexResolverProperties properties;
+
+    // null until the first listing succeeds, then every day is kept
+    private volatile Set<String> existingIndices;
+    private volatile Instant listedAt;
+
+    public IndexResolver(RestHighLevelClient client, PropertiesConfiguration config) {
+        this.client = client;
+        this.properties = config.getMonitoring().getIndexResolver();
+    }
+
+    /**
+     * Function that returns the daily indices that may hold logs of a time range
+     *
+     * @param from - start of the range, null for the beginning of time
+     * @param to - end of the range, null for now
+     * @return index names, or connectors-* for ranges over more than `max-indices` days, never empty
+     */
+    public String[] resolve(Instant from, Instant to) {
+        if (!properties.isEnabled() || from == null) {
+            return all();
+        }
+        Instant end = to == null ? Instant.now() : to;
+        if (from.isAfter(end)) {
+            // an empty range, eg from in the future: one index, the range query matches nothing
+            return new String[]{index_base + RollupService.DAY_FORMATTER.format(from)};
+        }
+
+        List<String> indices = new ArrayList<>();
+        for (Instant day = from.truncatedTo(ChronoUnit.DAYS); !day.isAfter(end); day = day.plus(1, ChronoUnit.DAYS)) {
+            indices.add(index_base + RollupService.DAY_FORMATTER.format(day));
+            if (indices.size() > properties.getMaxIndices()) {
+                return all();
+            }
+        }
+
+        List<String> existing = new ArrayList<>();
+        for (String index : indices) {
+            if (mayExist(index)) {
+                existing.add(index);
+            }
+        }
+        if (existing.isEmpty()) {
+            // an empty list would search every index of the cluster
+            existing.add(indices.get(indices.size() - 1));
+        }
+
+        log.debug("indices from {} to {}: {}", from, end, existing);
+        return existing.toArray(new String[0]);
+    }
+
+    public static String[] all() {
+        return new String[]{index_wild};
+    }
+
+    /**
+     * Function that returns false only for a daily index that is known not to exist
+     */
+    public boolean mayExist(String index) {
+        Set<String> existing = existingIndices;
+        if (existing == null || existing.contains(index)) {
+            return true;
+        }
+        // the index of a day from the last listing on may have been created since
+        String listedDay = index_base + RollupService.DAY_FORMATTER.format(listedAt);
+        return index.compareTo(listedDay) >= 0;
+    }
+
+    @Scheduled(fixedDelayString = "PT${monitoring.index-resolver.refresh-seconds:60}S")
+    public void refresh() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+
+        try {
+            Instant now = Instant.now();
+            Set<String> indices = client.indices()
+                .getAlias(new GetAliasesRequest().indices(index_wild), RequestOptions.DEFAULT)
+                .getAliases()
+                .keySet();
+            listedAt = now;
+            existingIndices = Set.copyOf(indices);
+            log.debug("{} daily indices exist", indices.size());
+        } catch (Exception e) {
+            // keep the previous listing
+            log.error(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package eu.ubitech.onenet.service;
+
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import eu.ubitech.onenet.config.PropertiesConfiguration.IpLookupProperties;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.ParsedComposite;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.terms.ParsedStringTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.springframework.stereotype.Service;
+
+/**
+ * Aggregates the logs per client IP for long lists of IPs, eg the output of anomaly detection.
+ *
+ * A single terms query with every IP can go over `index.max_terms_count` and makes huge request
+ * bodies, so the IPs are split in chunks of `monitoring.ip-lookup.chunk-size`. Each chunk is one
+ * search of the same multi search request, which elastic runs concurrently. The chunks hold
+ * different IPs, so their buckets do not overlap and are simply concatenated.
+ *
+ * For reports that may cover many IPs, the chunks can instead be paged with a composite
+ * aggregation of `monitoring.ip-lookup.page-size` buckets, one page in memory at a time.
+ */
+@Slf4j
+@Service
+public class IpBatchSearchService {
+
+    private static final String CLIENT_IP_FIELD = "client_geoip.ip.keyword";
+    private static final String agg_name = "per_ip";
+
+    private final SearchInstrumentationService searches;
+    private final IpLookupProperties properties;
+
+    public IpBatchSearchService(SearchInstrumentationService searches, PropertiesConfiguration config) {
+        this.searches = searches;
+        this.properties = config.getMonitoring().getIpLookup();
+    }
+
+    /**
+     * Function that returns one terms bucket per IP that appears in the logs matching the filter
+     *
+     * @param indices - indices to search, eg from IndexResolver
+     * @param filter - query the logs must also match, eg connector or time range
+     * @param ips - the IPs to look for, duplicates are ignored
+     * @param subAggregations - aggregations computed inside each IP bucket
+     * @return List<Terms.Bucket> - buckets keyed by IP, IPs without logs are missing
+     */
+    public List<Terms.Bucket> termsPerIp(String[] indices, QueryBuilder filter, Collection<String> ips,
+            List<AggregationBuilder> subAggregations) throws IOException {
+        List<String> distinctIps = new ArrayList<>(new LinkedHashSet<>(ips));
+        List<Terms.Bucket> buckets = new ArrayList<>();
+        if (distinctIps.isEmpty()) {
+            return buckets;
+        }
+
+        MultiSearchRequest multiSearchRequest = new MultiSearchRequest()
+            .maxConcurrentSearchRequests(properties.getMaxConcurrentSearches());
+
+        int chunkSize = properties.getChunkSize();
+        for (int from = 0; from < distinctIps.size(); from += chunkSize) {
+            List<String> chunk = distinctIps.subList(from, Math.min(from + chunkSize, distinctIps.size()));
+
+            // the size covers every IP of the chunk, nothing is cut by the default top 10
+            TermsAggregationBuilder aggregation = AggregationBuilders
+                .terms(agg_name)
+                .field(CLIENT_IP_FIELD)
+                .size(chunk.size());
+            subAggregations.forEach(aggregation::subAggregation);
+
+            SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+                .size(0)
+                .query(QueryBuilders.boolQuery()
+                       .filter(filter)
+                       .filter(QueryBuilders.termsQuery(CLIENT_IP_FIELD, chunk)))
+                .aggregation(aggregation);
+            multiSearchRequest.add(new SearchRequest(indices)
+                    .indicesOptions(IndexResolver.INDICES_OPTIONS)
+                    .source(searchSourceBuilder));
+        }
+
+        log.debug("looking up {} IPs in {} chunks", distinctIps.size(), multiSearchRequest.requests().size());
+
+        MultiSearchResponse multiSearchResponse = searches.call("ip-lookup", null,
+                (client, options) -> client.msearch(multiSearchRequest, options));
+        for (MultiSearchResponse.Item item : multiSearchResponse.getResponses()) {
+            if (item.isFailure()) {
+                throw new IOException("IP lookup chunk failed: " + item.getFailureMessage(), item.getFailure());
+            }
+            ParsedStringTerms results = item.getResponse().getAggregations().get(agg_name);
+            buckets.addAll(results.getBuckets());
+        }
+
+        return buckets;
+    }
+
+    /**
+     * Function that pages through one composite bucket per IP that appears in the logs matching
+     * the filter, handing each page to the consumer as soon as it arrives. Only one page is held
+     * in memory at a time.
+     *
+     * @param indices - indices to search, eg from IndexResolver
+     * @param filter - query the logs must also match, eg connector or time range
+     * @param ips - the IPs to look for, duplicates are ignored
+     * @param subAggregations - aggregations computed inside each IP bucket
+     * @param pageConsumer - receives the buckets of each page, keyed by "ip"
+     */
+    public void compositePerIp(String[] indices, QueryBuilder filter, Collection<String> ips,
+            List<AggregationBuilder> subAggregations,
+            IOConsumer<List<? extends CompositeAggregation.Bucket>> pageConsumer) throws IOException {
+        List<String> distinctIps = new ArrayList<>(new LinkedHashSet<>(ips));
+
+        int chunkSize = properties.getChunkSize();
+        for (int from = 0; from < distinctIps.size(); from += chunkSize) {
+            List<String> chunk = distinctIps.subList(from, Math.min(from + chunkSize, distinctIps.size()));
+            Map<String, Object> afterKey = null;
+
+            do {
+                CompositeAggregationBuilder aggregation = AggregationBuilders
+                    .composite(agg_name, List.of(new TermsValuesSourceBuilder("ip").field(CLIENT_IP_FIELD)))
+                    .size(properties.getPageSize());
+                subAggregations.forEach(aggregation::subAggregation);
+                if (afterKey != null) {
+                    aggregation.aggregateAfter(afterKey);
+                }
+
+                SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+                    .size(0)
+                    .query(QueryBuilders.boolQuery()
+                           .filter(filter)
+                           .filter(QueryBuilders.termsQuery(CLIENT_IP_FIELD, chunk)))
+                    .aggregation(aggregation);
+
+                SearchResponse searchResponse = searches.search("ip-lookup-page", null, new SearchRequest(indices)
+                        .indicesOptions(IndexResolver.INDICES_OPTIONS)
+                        .source(searchSourceBuilder));
+                ParsedComposite results = searchResponse.getAggregations().get(agg_name);
+
+                if (!results.getBuckets().isEmpty()) {
+                    pageConsumer.accept(results.getBuckets());
+                }
+                afterKey = results.getBuckets().isEmpty() ? null : results.afterKey();
+            } while (afterKey != null);
+        }
+    }
+
+    @FunctionalInterface
+    public interface IOConsumer<T> {
+        void accept(T value) throws IOException;
+    }
+}
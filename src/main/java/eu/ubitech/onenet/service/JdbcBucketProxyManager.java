@@ -0,0 +1,145 @@
+package eu.ubitech.onenet.service;
+
+import io.github.bucket4j.distributed.proxy.ClientSideConfig;
+import io.github.bucket4j.distributed.proxy.generic.compare_and_swap.AbstractCompareAndSwapBasedProxyManager;
+import io.github.bucket4j.distributed.proxy.generic.compare_and_swap.AsyncCompareAndSwapOperation;
+import io.github.bucket4j.distributed.proxy.generic.compare_and_swap.CompareAndSwapOperation;
+import io.github.bucket4j.distributed.remote.RemoteBucketState;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Keeps the rate limit buckets in a table of the application database, so that every replica
+ * behind the load balancer shares the same quota per user.
+ *
+ * Each row holds the serialized state of a bucket and a version. A change is written with a
+ * compare and swap on the version (an insert for a new bucket), which bucket4j retries when
+ * another replica changed the bucket in between, so no row locks are held. The SQL is plain
+ * enough for both PostgreSQL and H2.
+ *
+ * Rows not written for `idle` are deleted by removeExpired(), like the buckets of the local cache.
+ */
+@Slf4j
+public class JdbcBucketProxyManager extends AbstractCompareAndSwapBasedProxyManager<String> {
+
+    private static final String TABLE = "ratelimit_bucket";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final long idleMillis;
+    // runs the statements of the async operations, jdbc itself is blocking
+    private final Executor asyncExecutor;
+
+    public JdbcBucketProxyManager(JdbcTemplate jdbcTemplate, Duration idle) {
+        this(jdbcTemplate, idle, ForkJoinPool.commonPool());
+    }
+
+    public JdbcBucketProxyManager(JdbcTemplate jdbcTemplate, Duration idle, Executor asyncExecutor) {
+        super(ClientSideConfig.getDefault());
+        this.jdbcTemplate = jdbcTemplate;
+        this.idleMillis = idle.toMillis();
+        this.asyncExecutor = asyncExecutor;
+
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+                + "id VARCHAR(512) PRIMARY KEY, "
+                + "state BYTEA NOT NULL, "
+                + "version BIGINT NOT NULL, "
+                + "expires_at BIGINT NOT NULL)");
+    }
+
+    @Override
+    protected CompareAndSwapOperation beginCompareAndSwapOperation(String key) {
+        return new JdbcCompareAndSwapOperation(key);
+    }
+
+    @Override
+    protected AsyncCompareAndSwapOperation beginAsyncCompareAndSwapOperation(String key) {
+        JdbcCompareAndSwapOperation operation = new JdbcCompareAndSwapOperation(key);
+        return new AsyncCompareAndSwapOperation() {
+            @Override
+            public CompletableFuture<Optional<byte[]>> getStateData() {
+                return CompletableFuture.supplyAsync(operation::getStateData, asyncExecutor);
+            }
+
+            @Override
+            public CompletableFuture<Boolean> compareAndSwap(byte[] originalData, byte[] newData,
+                    RemoteBucketState newState) {
+                return CompletableFuture.supplyAsync(
+                        () -> operation.compareAndSwap(originalData, newData, newState), asyncExecutor);
+            }
+        };
+    }
+
+    @Override
+    public boolean isAsyncModeSupported() {
+        return true;
+    }
+
+    @Override
+    public void removeProxy(String key) {
+        jdbcTemplate.update("DELETE FROM " + TABLE + " WHERE id = ?", key);
+    }
+
+    @Override
+    protected CompletableFuture<Void> removeAsync(String key) {
+        return CompletableFuture.runAsync(() -> removeProxy(key), asyncExecutor);
+    }
+
+    /**
+     * Function that deletes the buckets no replica used for `idle`
+     *
+     * @return number of deleted buckets
+     */
+    public int removeExpired() {
+        int removed = jdbcTemplate.update("DELETE FROM " + TABLE + " WHERE expires_at < ?", System.currentTimeMillis());
+        log.debug("removed {} expired rate limit buckets", removed);
+        return removed;
+    }
+
+    private class JdbcCompareAndSwapOperation implements CompareAndSwapOperation {
+
+        private final String key;
+        // version of the state last read, the swap only succeeds if it is still the same
+        private long version;
+
+        JdbcCompareAndSwapOperation(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public Optional<byte[]> getStateData() {
+            List<Object[]> rows = jdbcTemplate.query(
+                    "SELECT state, version FROM " + TABLE + " WHERE id = ?",
+                    (rs, rowNum) -> new Object[]{rs.getBytes("state"), rs.getLong("version")},
+                    key);
+            if (rows.isEmpty()) {
+                return Optional.empty();
+            }
+            version = (Long) rows.get(0)[1];
+            return Optional.of((byte[]) rows.get(0)[0]);
+        }
+
+        @Override
+        public boolean compareAndSwap(byte[] originalData, byte[] newData, RemoteBucketState newState) {
+            long expiresAt = System.currentTimeMillis() + idleMillis;
+            if (originalData == null) {
+                try {
+                    jdbcTemplate.update("INSERT INTO " + TABLE + " (id, state, version, expires_at) VALUES (?, ?, 0, ?)",
+                            key, newData, expiresAt);
+                    return true;
+                } catch (DuplicateKeyException e) {
+                    // created by another replica in between
+                    return false;
+                }
+            }
+            return jdbcTemplate.update("UPDATE " + TABLE + " SET state = ?, version = version + 1, expires_at = ? "
+                    + "WHERE id = ? AND version = ?", newData, expiresAt, key, version) == 1;
+        }
+    }
+}
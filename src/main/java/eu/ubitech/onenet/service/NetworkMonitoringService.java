@@ -10,17 +10,26 @@
  *
  * The two main functions are queryLastMonth and query24hourEntriesCount.
  * The operations are done in two different ways to demonstrate each functionality.
- * - queryLastMonth creates 30 index strings, one for each day and performs 30 queries. This is not optimal
+ * - queryLastMonth creates 15 index strings, one for each day and performs 15 queries. This is not optimal
  * but it may be needed eventually if we will perform actual operations on data
  * Since it is not live data we dont mind
+ * The per day count queries can run sequentially or concurrently on a bounded executor, or be replaced by
+ * a single daily date histogram, selected by `monitoring.monthly-query-mode`
+ * Days that are already rolled up by RollupService are read from the rollups and are not queried at all
  *
  * - query24hourEntriesCount uses the date histogram feature of elastic, where we create a final form for our data in hourly buckets
- * with a query on a specific range on our index, using a wildcard "connectors-*".
+ * with a query on a specific range on the daily indices of the range, listed by IndexResolver.
  * This is the most optimal it can be because we use only the optimized elastic operations and perform zero post-processing
  * It is used for live data Server Sent Events, each cycle is some msec only.
+ * The closed hours are kept in memory by HourlyHistogramService, so each cycle only queries the current hour.
  * The trigger of SSE is explained in WIKI
  *
- * queryLastMonth can also be ported to date histogram using daily buckets
+ * The multi day widgets (hits per country, bytes sent and response codes) also read the closed days
+ * from the rollups and query the logs only for today. If a closed day is not rolled up yet, they
+ * query the logs for the whole range as before.
+ *
+ * The chart endpoints also take from / to / interval parameters, planned by QueryPlanner. Daily plans
+ * read the rollups like above, the others run one date histogram over the daily indices of the range.
  *
  * TROUBLESHOOTING
  * if problems arise, it is probably by changes in the format of timestamps or index format.
@@ -30,30 +39,45 @@
 
 package eu.ubitech.onenet.service;
 
+import eu.ubitech.onenet.config.PropertiesConfiguration;
 import eu.ubitech.onenet.dto.HttpTransactionsDto;
 import eu.ubitech.onenet.dto.AdvancedFilteringDto;
+import eu.ubitech.onenet.dto.DashboardDto;
+import eu.ubitech.onenet.dto.DashboardDto.Widget;
 import eu.ubitech.onenet.model.ConnectorLogs;
 import eu.ubitech.onenet.model.CountryHitsCount;
+import eu.ubitech.onenet.model.DailyRollup;
 import eu.ubitech.onenet.model.StackedSeriesDataPoint;
 import eu.ubitech.onenet.model.AdvancedFilteringResult;
 import eu.ubitech.onenet.model.HealthCheckResult;
+import eu.ubitech.onenet.service.QueryCacheService.CachedQuery;
+import eu.ubitech.onenet.service.QueryPlanner.QueryPlan;
+import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import javax.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.client.RequestOptions;
-import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.index.query.MatchAllQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.QueryBuilder;
@@ -63,6 +87,8 @@ import org.elasticsearch.index.query.RangeQueryBuilder;
 import org.elasticsearch.index.query.TermQueryBuilder;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
 import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.filter.ParsedFilter;
 import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
 import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
 import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
@@ -70,7 +96,6 @@ import org.elasticsearch.search.aggregations.bucket.histogram.LongBounds;
 import org.elasticsearch.search.aggregations.bucket.histogram.ParsedDateHistogram;
 import org.elasticsearch.search.aggregations.bucket.terms.ParsedStringTerms;
 import org.elasticsearch.search.aggregations.bucket.terms.Terms.Bucket;
-import org.elasticsearch.search.aggregations.metrics.ParsedMax;
 import org.elasticsearch.search.aggregations.metrics.ParsedSum;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.springframework.data.domain.PageRequest;
@@ -80,6 +105,7 @@ import org.springframework.data.elasticsearch.core.SearchHit;
 import org.springframework.data.elasticsearch.core.SearchHits;
 import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
 import org.springframework.data.elasticsearch.core.query.FetchSourceFilter;
+import org.springframework.data.elasticsearch.core.query.IndicesOptions;
 import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
 import org.springframework.data.elasticsearch.core.query.Query;
 import org.springframework.stereotype.Service;
@@ -93,20 +119,58 @@ public class NetworkMonitoringService {
     private static final int max_elastic_page_size = 10000; // limitation set by elastic
     // The field we use to distinguish between connectors
     private static final String CONNECTOR_ID_FIELD = "headers.x_forwarded_for.keyword";
+    // Same format as getFormattedString, for the hourly buckets
+    private static final DateTimeFormatter HOUR_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneOffset.UTC);
+    // the way elastic formats the keys of date histograms on @timestamp
+    private static final DateTimeFormatter HISTOGRAM_KEY_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+    // default size of the terms aggregations, the widgets show the top 10
+    private static final int TOP_TERMS = 10;
 
 
     private final ElasticsearchOperations elasticsearchOperations;
-    private final RestHighLevelClient client;
+    private final SearchInstrumentationService searches;
+    private final PropertiesConfiguration config;
+    private final QueryCacheService queryCache;
+    private final HourlyHistogramService hourlyHistogramService;
+    private final AdvancedFilteringQueryCompiler advancedFilteringQueryCompiler;
+    private final ConnectorRegistryService connectorRegistry;
+    private final RollupService rollupService;
+    private final IndexResolver indexResolver;
+    // Bounded pool for the per day count queries of queryLastMonth in PARALLEL mode
+    private final ExecutorService dailyCountExecutor;
 
     public NetworkMonitoringService(
             ElasticsearchOperations elasticsearchOperations,
-            RestHighLevelClient client) {
+            SearchInstrumentationService searches,
+            PropertiesConfiguration config,
+            QueryCacheService queryCache,
+            HourlyHistogramService hourlyHistogramService,
+            AdvancedFilteringQueryCompiler advancedFilteringQueryCompiler,
+            ConnectorRegistryService connectorRegistry,
+            RollupService rollupService,
+            IndexResolver indexResolver) {
         this.elasticsearchOperations = elasticsearchOperations;
-        this.client = client;
+        this.searches = searches;
+        this.config = config;
+        this.queryCache = queryCache;
+        this.hourlyHistogramService = hourlyHistogramService;
+        this.advancedFilteringQueryCompiler = advancedFilteringQueryCompiler;
+        this.connectorRegistry = connectorRegistry;
+        this.rollupService = rollupService;
+        this.indexResolver = indexResolver;
+        this.dailyCountExecutor = Executors.newFixedThreadPool(
+                config.getMonitoring().getMonthlyQueryThreads());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        dailyCountExecutor.shutdownNow();
     }
 
     /**
-     * Function that returns a DTO containing transactions per day for the last 30 days
+     * Function that returns a DTO containing transactions per day for the last 15 days
      *
      * @param connector - connector id
      * @return DTO of the HTTP transactions
@@ -116,17 +180,28 @@ public class NetworkMonitoringService {
         log.debug("Starting queryLastMonth");
         HttpTransactionsDto dto = new HttpTransactionsDto();
 
-        // Create a List of days for using the indexes
-        LocalDate weekBeforeToday = LocalDate.now().minusDays(15);
+        // Create a List of days for using the indexes, the daily indexes and the histogram buckets are UTC days
+        LocalDate weekBeforeToday = LocalDate.now(ZoneOffset.UTC).minusDays(15);
         List<String> daysList = IntStream.rangeClosed(1, 15)
                 .mapToObj(weekBeforeToday::plusDays)
                 .map(x -> x.format(DateTimeFormatter.ofPattern("yyyy.MM.dd")))// this is the format convention we have used for indexes in ELK, as separated by logstash
                 .collect(Collectors.toList());
 
-        // perform 30 queries for the last 30 days, take the day as string created above
-        // and concatenate the index string eg connectors-2022.08.22 and get count for that day/index
+        // Closed days that are rolled up are read from the rollups, the rest from the logs
+        Map<String, DailyRollup> rolledDays = rollupService.getRolledDays(daysList, connector);
+        List<String> rawDays = daysList.stream()
+                .filter(day -> !rolledDays.containsKey(day))
+                .collect(Collectors.toList());
+
+        List<Long> rawCountList = rawDays.isEmpty() ? List.of() : queryDaysCount(rawDays, connector);
+        Map<String, Long> rawCounts = new HashMap<>();
+        for (int i = 0; i < rawDays.size(); i++) {
+            rawCounts.put(rawDays.get(i), rawCountList.get(i));
+        }
+
         List<Long> indexCountList = daysList.stream()
-                .map(day -> queryDayEntriesCount(index_base + day, connector)).collect(Collectors.toList());
+                .map(day -> rolledDays.containsKey(day) ? rolledDays.get(day).getHits() : rawCounts.get(day))
+                .collect(Collectors.toList());
 
         dto.setXaxis(daysList);
         dto.setYaxis(indexCountList);
@@ -137,6 +212,60 @@ public class NetworkMonitoringService {
         return dto;
     }
 
+    /**
+     * Function that returns the log count of each of the given days from the logs, the way
+     * `monitoring.monthly-query-mode` says
+     *
+     * @param daysList - days formatted as in the index names
+     * @param connector - connector id
+     * @return List<Long>
+     */
+    private List<Long> queryDaysCount(List<String> daysList, String connector) {
+        switch (config.getMonitoring().getMonthlyQueryMode()) {
+            case HISTOGRAM:
+                return queryDailyHistogramCount(daysList, connector);
+            case PARALLEL:
+                return queryDayEntriesCountParallel(daysList, connector);
+            default:
+                // perform 15 queries for the last 15 days, take the day as string created above
+                // and concatenate the index string eg connectors-2022.08.22 and get count for that day/index
+                return daysList.stream()
+                        .map(day -> queryDayEntriesCount(index_base + day, connector)).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Function that returns the summary of each day from the day of `from` until now, the closed
+     * days from the rollups and today from the logs
+     *
+     * @param from - the first day
+     * @param connector - connector id
+     * @return List<DailyRollup> - one per day in order, or null if a closed day is not rolled up
+     */
+    private List<DailyRollup> dailySummariesSince(Instant from, String connector) throws IOException {
+        if (!rollupService.isEnabled()) {
+            return null;
+        }
+
+        Instant todayStart = Instant.now().truncatedTo(ChronoUnit.DAYS);
+        List<String> closedDays = new ArrayList<>();
+        for (Instant day = from.truncatedTo(ChronoUnit.DAYS); day.isBefore(todayStart); day = day.plus(1, ChronoUnit.DAYS)) {
+            closedDays.add(RollupService.DAY_FORMATTER.format(day));
+        }
+
+        Map<String, DailyRollup> rolledDays = rollupService.getRolledDays(closedDays, connector);
+        if (rolledDays.size() < closedDays.size()) {
+            log.debug("{} of {} days rolled up, querying the logs", rolledDays.size(), closedDays.size());
+            return null;
+        }
+
+        List<DailyRollup> summaries = closedDays.stream()
+                .map(rolledDays::get)
+                .collect(Collectors.toList());
+        summaries.add(rollupService.summarize(todayStart, Instant.now(), connector));
+        return summaries;
+    }
+
     /**
      * Function that returns a long representing the count of logs for a day
      *
@@ -147,6 +276,10 @@ public class NetworkMonitoringService {
     private long queryDayEntriesCount(String elasticIndex, String connector) {
         log.debug("Starting queryDayEntriesCount for index: {}", elasticIndex);
         long totalCount = 0L;
+        if (!indexResolver.mayExist(elasticIndex)) {
+            log.info("Empty index: {}", elasticIndex);
+            return totalCount;
+        }
         try {
             Query query;
             if (connector == null) {
@@ -162,8 +295,9 @@ public class NetworkMonitoringService {
                     .build();
             }
 
-            totalCount = elasticsearchOperations
-                    .count(query, IndexCoordinates.of(elasticIndex));
+            Query countQuery = query;
+            totalCount = searches.time("day-count", connector, () -> elasticsearchOperations
+                    .count(countQuery, IndexCoordinates.of(elasticIndex)));
 
             log.info("For index: {} , total count: {}", elasticIndex, totalCount);
         } catch (NoSuchIndexException e){
@@ -175,6 +309,83 @@ public class NetworkMonitoringService {
         return totalCount;
     }
 
+    /**
+     * Function that performs the per day count queries concurrently, on the bounded
+     * dailyCountExecutor, and returns the counts in the order of the given days
+     *
+     * @param daysList - days formatted as in the index names
+     * @param connector - connector id
+     * @return List<Long>
+     */
+    private List<Long> queryDayEntriesCountParallel(List<String> daysList, String connector) {
+        List<CompletableFuture<Long>> futures = daysList.stream()
+                .map(day -> CompletableFuture.supplyAsync(
+                        () -> queryDayEntriesCount(index_base + day, connector), dailyCountExecutor))
+                .collect(Collectors.toList());
+
+        return futures.stream()
+                .map(CompletableFuture::join)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Function that returns the counts for the given days with a single daily date histogram
+     * over all indices, instead of one count query per daily index
+     *
+     * @param daysList - days formatted as in the index names
+     * @param connector - connector id
+     * @return List<Long>
+     */
+    private List<Long> queryDailyHistogramCount(List<String> daysList, String connector) {
+        log.debug("Starting queryDailyHistogramCount");
+        String agg_name = "query_per_day";
+        DateTimeFormatter dayFormatter = DateTimeFormatter.ofPattern("yyyy.MM.dd").withZone(ZoneOffset.UTC);
+        Map<String, Long> countPerDay = new HashMap<>();
+
+        try {
+            Instant from = LocalDate.parse(daysList.get(0), dayFormatter)
+                    .atStartOfDay(ZoneOffset.UTC).toInstant();
+            Instant to = LocalDate.parse(daysList.get(daysList.size() - 1), dayFormatter)
+                    .plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant();
+
+            DateHistogramAggregationBuilder aggregation = AggregationBuilders
+                    .dateHistogram(agg_name)
+                    .field("@timestamp")
+                    .fixedInterval(DateHistogramInterval.DAY)
+                    .minDocCount(0)
+                    .missing(0)
+                    .extendedBounds(new LongBounds(from.toEpochMilli(), to.toEpochMilli() - 1));
+
+            RangeQueryBuilder rangeQuery = QueryBuilders.rangeQuery("@timestamp")
+                    .gte(from.toString())
+                    .lt(to.toString());
+
+            BoolQueryBuilder query = QueryBuilders.boolQuery().filter(rangeQuery);
+            if (connector != null) {
+                query.filter(QueryBuilders.termQuery(CONNECTOR_ID_FIELD, connector));
+            }
+
+            SearchRequest searchRequest = new SearchRequest(indexResolver.resolve(from, to))
+                .indicesOptions(IndexResolver.INDICES_OPTIONS);
+            SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+            searchSourceBuilder.size(0).query(query).aggregation(aggregation);
+            searchRequest.source(searchSourceBuilder);
+
+            SearchResponse searchResponse = searches.search("monthly-histogram", connector, searchRequest);
+
+            ParsedDateHistogram dateGroupBy = searchResponse.getAggregations().get(agg_name);
+            dateGroupBy.getBuckets().forEach(b -> countPerDay.put(
+                    dayFormatter.format((ZonedDateTime) b.getKey()), b.getDocCount()));
+
+        } catch (Exception e) {
+            log.error(e.getMessage());
+        }
+
+        return daysList.stream()
+                .map(day -> countPerDay.getOrDefault(day, 0L))
+                .collect(Collectors.toList());
+    }
+
     /**
      * Function that returns list of parsed ConnectorLogs containing all info like message, agent id
      * etc of the past 24 hours
@@ -239,70 +450,18 @@ public class NetworkMonitoringService {
         log.debug("Starting query24hourEntriesCount");
 
         HttpTransactionsDto dto = new HttpTransactionsDto();
-        String agg_name = "query_per_hour";
 
         try {
-            // get the timestamp now and timestamp 24 hours ago, rounded up in hours
-            // eg 2022-08-04T14:42:09Z 2022-08-03T14:00:00Z
-            Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
-            Instant rounded24hAgo = now.minus(24, ChronoUnit.HOURS).truncatedTo(ChronoUnit.HOURS);
-            log.debug("instants: {} {}", now, rounded24hAgo);
-
-            // create a query aggregation for the date histogram
-            // do not make changes in any of the parameters without fully understanding the consequences
-            DateHistogramAggregationBuilder aggregation = AggregationBuilders
-                    .dateHistogram(agg_name)
-                    .field("@timestamp")
-                    .fixedInterval(DateHistogramInterval.HOUR)
-                    .minDocCount(0) // this along with the below, means that the empty buckets will be returned even if they are empty
-                    .missing(0)
-                    .extendedBounds(
-                            new LongBounds(rounded24hAgo.toString(), now.toString())
-                    );
-
-            // both ranges should be set, here and the aggregation as extended bounds
-            RangeQueryBuilder rangeQuery = QueryBuilders.rangeQuery("@timestamp")
-                    .lte(now.toString())
-                    .gte(rounded24hAgo.toString());
-
-
-            // if connector argument is given, only search for specific connector logs
-            QueryBuilder query;
-            if (connector == null) {
-                query = QueryBuilders.boolQuery()
-                    .must(rangeQuery);
-            }
-            else {
-                TermQueryBuilder connectorQuery =
-                    QueryBuilders.termQuery(CONNECTOR_ID_FIELD, connector);
-                query = QueryBuilders.boolQuery()
-                    .must(rangeQuery)
-                    .must(connectorQuery);
-            }
-
-            // we search with wildcard, since the last 24 contain two indices, eg half day now half day yesterday
-            SearchRequest searchRequest = new SearchRequest(index_wild);
-            SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
-            searchSourceBuilder.query(query).aggregation(aggregation);
-            searchRequest.source(searchSourceBuilder);
-
-            SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
-
-            ParsedDateHistogram dateGroupBy = searchResponse.getAggregations()
-                    .get(agg_name);
-
-            log.debug("query24hourEntriesCount total count: {}",
-                    searchResponse.getHits().getTotalHits().value);
-
-            // here we got the final data, we need to fill our dto
-            List<? extends Histogram.Bucket> bucketList = dateGroupBy.getBuckets();
+            // hourly buckets from 24 hours ago, rounded in hours, up to the current hour
+            // eg 2022-08-03T14:00:00Z ... 2022-08-04T14:00:00Z
+            NavigableMap<Instant, Long> buckets = hourlyHistogramService.last24Hours(connector);
 
             List<String> dates = new ArrayList<>();
             List<Long> hitsCount = new ArrayList<>();
 
-            bucketList.forEach(b -> {
-                dates.add(getFormattedString(b.getKeyAsString()));
-                hitsCount.add(b.getDocCount());
+            buckets.forEach((hour, count) -> {
+                dates.add(HOUR_FORMATTER.format(hour));
+                hitsCount.add(count);
             });
 
             log.debug("dates list result: {}", dates);
@@ -373,83 +532,100 @@ public class NetworkMonitoringService {
     public List<CountryHitsCount> aggregateHitsPerCountry(String connector) {
         log.info("Starting aggregateHitsPerCountry");
 
+        try {
+            return queryCache.get(CachedQuery.HITS_PER_COUNTRY, connector, () -> {
+                List<CountryHitsCount> rolled = rollupHitsPerCountry(connector);
+                return rolled != null ? rolled : searchHitsPerCountry(connector);
+            });
+        } catch (Exception e) {
+            log.error(e.getMessage());
+        }
+
+        return new ArrayList<>();
+    }
+
+    private List<CountryHitsCount> rollupHitsPerCountry(String connector) throws IOException {
+        Instant rounded30dAgo = Instant.now().minus(30, ChronoUnit.DAYS).truncatedTo(ChronoUnit.DAYS);
+        List<DailyRollup> summaries = dailySummariesSince(rounded30dAgo, connector);
+        if (summaries == null) {
+            return null;
+        }
+
+        return topCountries(summaries);
+    }
+
+    private List<CountryHitsCount> searchHitsPerCountry(String connector) throws IOException {
         List<CountryHitsCount> countryHitsCountList = new ArrayList<>();
         String agg_name = "hits_per_country";
         String sub_agg_name = "get_country_name";
 
-        try {
-            Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
-            Instant rounded30dAgo = now.minus(30, ChronoUnit.DAYS).truncatedTo(ChronoUnit.DAYS);
-            log.debug("instants: {} {}", now, rounded30dAgo);
-
-            RangeQueryBuilder rangeQuery = QueryBuilders.rangeQuery("@timestamp")
-                    .lte(now.toString())
-                    .gte(rounded30dAgo.toString());
+        Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        Instant rounded30dAgo = now.minus(30, ChronoUnit.DAYS).truncatedTo(ChronoUnit.DAYS);
+        log.debug("instants: {} {}", now, rounded30dAgo);
 
-            // Use this sub aggregation to also get the country_name field
-            AggregationBuilder subAggregation = AggregationBuilders
-                .terms(sub_agg_name)
-                .field("client_geoip.country_name.keyword");
+        RangeQueryBuilder rangeQuery = QueryBuilders.rangeQuery("@timestamp")
+                .lte(now.toString())
+                .gte(rounded30dAgo.toString());
 
-            AggregationBuilder aggregation = AggregationBuilders
-                .terms(agg_name)
-                .field("client_geoip.country_code2.keyword")
-                .subAggregation(subAggregation);
+        // Use this sub aggregation to also get the country_name field
+        AggregationBuilder subAggregation = AggregationBuilders
+            .terms(sub_agg_name)
+            .field("client_geoip.country_name.keyword");
 
-            QueryBuilder query;
-            if (connector == null) {
-                query = QueryBuilders.boolQuery()
-                    .must(rangeQuery);
-            }
-            else {
-                // Only search for logs from the specified connector
-                TermQueryBuilder connectorQuery =
-                    QueryBuilders.termQuery(CONNECTOR_ID_FIELD, connector);
-                query = QueryBuilders.boolQuery()
-                    .must(rangeQuery)
-                    .must(connectorQuery);
-            }
+        AggregationBuilder aggregation = AggregationBuilders
+            .terms(agg_name)
+            .field("client_geoip.country_code2.keyword")
+            .subAggregation(subAggregation);
 
-            SearchRequest searchRequest = new SearchRequest(index_wild);
-            SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
-            searchSourceBuilder.query(query).aggregation(aggregation);
-            searchRequest.source(searchSourceBuilder);
+        QueryBuilder query;
+        if (connector == null) {
+            query = QueryBuilders.boolQuery()
+                .must(rangeQuery);
+        }
+        else {
+            // Only search for logs from the specified connector
+            TermQueryBuilder connectorQuery =
+                QueryBuilders.termQuery(CONNECTOR_ID_FIELD, connector);
+            query = QueryBuilders.boolQuery()
+                .must(rangeQuery)
+                .must(connectorQuery);
+        }
 
-            SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+        SearchRequest searchRequest = new SearchRequest(indexResolver.resolve(rounded30dAgo, now))
+            .indicesOptions(IndexResolver.INDICES_OPTIONS);
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+        searchSourceBuilder.query(query).aggregation(aggregation);
+        searchRequest.source(searchSourceBuilder);
 
-            log.debug("total count: {}",
-                      searchResponse.getHits().getTotalHits().value);
+        SearchResponse searchResponse = searches.search("hits-per-country", connector, searchRequest);
 
-            ParsedStringTerms hitsPerCountry = searchResponse.getAggregations().get(agg_name);
+        log.debug("total count: {}",
+                  searchResponse.getHits().getTotalHits().value);
 
-            List<? extends Bucket> bucketList = hitsPerCountry.getBuckets();
+        ParsedStringTerms hitsPerCountry = searchResponse.getAggregations().get(agg_name);
 
-            // For each country returned, populate countryHitsCountList
-            bucketList.forEach(b -> {
-                ParsedStringTerms countryName = b.getAggregations().get(sub_agg_name);
+        List<? extends Bucket> bucketList = hitsPerCountry.getBuckets();
 
-                List<? extends Bucket> subBucketList = countryName.getBuckets();
+        // For each country returned, populate countryHitsCountList
+        bucketList.forEach(b -> {
+            ParsedStringTerms countryName = b.getAggregations().get(sub_agg_name);
 
-                // Use the sub aggregation to get the country name
-                subBucketList.forEach(sb -> {
-                    log.debug("country code: [{}], country name: [{}], hits: [{}]",
-                             b.getKeyAsString(),
-                             sb.getKeyAsString(),
-                             b.getDocCount());
+            List<? extends Bucket> subBucketList = countryName.getBuckets();
 
-                    countryHitsCountList
-                        .add(new CountryHitsCount(
-                                b.getKeyAsString(),
-                                sb.getKeyAsString(),
-                                new Long(b.getDocCount())));
-                });
+            // Use the sub aggregation to get the country name
+            subBucketList.forEach(sb -> {
+                log.debug("country code: [{}], country name: [{}], hits: [{}]",
+                         b.getKeyAsString(),
+                         sb.getKeyAsString(),
+                         b.getDocCount());
+
+                countryHitsCountList
+                    .add(new CountryHitsCount(
+                            b.getKeyAsString(),
+                            sb.getKeyAsString(),
+                            new Long(b.getDocCount())));
             });
-
-            return countryHitsCountList;
-
-        } catch (Exception e) {
-            log.error(e.getMessage());
-        }
+        });
 
         return countryHitsCountList;
     }
@@ -464,93 +640,117 @@ public class NetworkMonitoringService {
     public HttpTransactionsDto aggregateRecentBytesSent(String connector) {
         log.info("Starting aggregateRecentBytesSent");
 
-        HttpTransactionsDto dto = new HttpTransactionsDto();
+        try {
+            return queryCache.get(CachedQuery.BYTES_SENT, connector, () -> {
+                HttpTransactionsDto rolled = rollupRecentBytesSent(connector);
+                return rolled != null ? rolled : searchRecentBytesSent(connector);
+            });
+        } catch (Exception e) {
+            log.error(e.getMessage());
+        }
 
-        String agg_name = "per_day";
-        String sub_agg_name = "sum_bytes_sent";
+        return new HttpTransactionsDto();
+    }
 
-        try {
-            Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
-            Instant rounded3dAgo = now.minus(2, ChronoUnit.DAYS).truncatedTo(ChronoUnit.DAYS);
-            log.debug("instants: {} {}", now, rounded3dAgo);
+    private HttpTransactionsDto rollupRecentBytesSent(String connector) throws IOException {
+        Instant rounded3dAgo = Instant.now().minus(2, ChronoUnit.DAYS).truncatedTo(ChronoUnit.DAYS);
+        List<DailyRollup> summaries = dailySummariesSince(rounded3dAgo, connector);
+        if (summaries == null) {
+            return null;
+        }
 
-            // Only get data for the last 3 days
-            RangeQueryBuilder rangeQuery = QueryBuilders.rangeQuery("@timestamp")
-                    .lte(now.toString())
-                    .gte(rounded3dAgo.toString());
+        return bytesSentPerDay(summaries);
+    }
 
-            // Get the sum of bytes sent
-            AggregationBuilder subAggregation = AggregationBuilders
-                .sum(sub_agg_name)
-                .field("bytes");
+    private HttpTransactionsDto bytesSentPerDay(List<DailyRollup> summaries) {
+        HttpTransactionsDto dto = new HttpTransactionsDto();
+        dto.setXaxis(summaries.stream().map(this::histogramKey).collect(Collectors.toList()));
+        dto.setYaxis(summaries.stream().map(DailyRollup::getBytes).collect(Collectors.toList()));
+        return dto;
+    }
 
-            // Aggregate data per day
-            DateHistogramAggregationBuilder aggregation = AggregationBuilders
-                    .dateHistogram(agg_name)
-                    .field("@timestamp")
-                    .fixedInterval(DateHistogramInterval.DAY)
-                    .minDocCount(0)
-                    .missing(0)
-                    .extendedBounds(
-                            new LongBounds(rounded3dAgo.toString(), now.toString())
-                    )
-                    .subAggregation(subAggregation);
+    private HttpTransactionsDto searchRecentBytesSent(String connector) throws IOException {
+        HttpTransactionsDto dto = new HttpTransactionsDto();
 
-            QueryBuilder query;
-            if (connector == null) {
-                query = QueryBuilders.boolQuery()
-                    .must(rangeQuery);
-            }
-            else {
-                // Only search for logs from the specified connector
-                TermQueryBuilder connectorQuery =
-                    QueryBuilders.termQuery(CONNECTOR_ID_FIELD, connector);
-                query = QueryBuilders.boolQuery()
-                    .must(rangeQuery)
-                    .must(connectorQuery);
-            }
+        String agg_name = "per_day";
+        String sub_agg_name = "sum_bytes_sent";
 
-            SearchRequest searchRequest = new SearchRequest(index_wild);
-            SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
-            searchSourceBuilder.query(query).aggregation(aggregation);
-            searchRequest.source(searchSourceBuilder);
+        Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        Instant rounded3dAgo = now.minus(2, ChronoUnit.DAYS).truncatedTo(ChronoUnit.DAYS);
+        log.debug("instants: {} {}", now, rounded3dAgo);
+
+        // Only get data for the last 3 days
+        RangeQueryBuilder rangeQuery = QueryBuilders.rangeQuery("@timestamp")
+                .lte(now.toString())
+                .gte(rounded3dAgo.toString());
+
+        // Get the sum of bytes sent
+        AggregationBuilder subAggregation = AggregationBuilders
+            .sum(sub_agg_name)
+            .field("bytes");
+
+        // Aggregate data per day
+        DateHistogramAggregationBuilder aggregation = AggregationBuilders
+                .dateHistogram(agg_name)
+                .field("@timestamp")
+                .fixedInterval(DateHistogramInterval.DAY)
+                .minDocCount(0)
+                .missing(0)
+                .extendedBounds(
+                        new LongBounds(rounded3dAgo.toString(), now.toString())
+                )
+                .subAggregation(subAggregation);
 
-            SearchResponse searchResponse =
-                client.search(searchRequest, RequestOptions.DEFAULT);
+        QueryBuilder query;
+        if (connector == null) {
+            query = QueryBuilders.boolQuery()
+                .must(rangeQuery);
+        }
+        else {
+            // Only search for logs from the specified connector
+            TermQueryBuilder connectorQuery =
+                QueryBuilders.termQuery(CONNECTOR_ID_FIELD, connector);
+            query = QueryBuilders.boolQuery()
+                .must(rangeQuery)
+                .must(connectorQuery);
+        }
 
-            log.debug("total count: {}",
-                      searchResponse.getHits().getTotalHits().value);
+        SearchRequest searchRequest = new SearchRequest(indexResolver.resolve(rounded3dAgo, now))
+            .indicesOptions(IndexResolver.INDICES_OPTIONS);
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+        searchSourceBuilder.query(query).aggregation(aggregation);
+        searchRequest.source(searchSourceBuilder);
 
-            ParsedDateHistogram dateGroupBy = searchResponse.getAggregations()
-                .get(agg_name);
+        SearchResponse searchResponse =
+            searches.search("bytes-sent", connector, searchRequest);
 
-            List<? extends Histogram.Bucket> bucketList = dateGroupBy.getBuckets();
+        log.debug("total count: {}",
+                  searchResponse.getHits().getTotalHits().value);
 
-            List<String> dates = new ArrayList<>();
-            List<Long> bytesSent = new ArrayList<>();
+        ParsedDateHistogram dateGroupBy = searchResponse.getAggregations()
+            .get(agg_name);
 
-            // For each day, populate dates and bytesSent
-            bucketList.forEach(b -> {
-                ParsedSum bytesSentThisDay = b
-                    .getAggregations()
-                    .get(sub_agg_name);
+        List<? extends Histogram.Bucket> bucketList = dateGroupBy.getBuckets();
 
-                log.debug("date: [{}], total bytes: [{}]",
-                          getFormattedString(b.getKeyAsString()),
-                          bytesSentThisDay.getValue());
+        List<String> dates = new ArrayList<>();
+        List<Long> bytesSent = new ArrayList<>();
 
-                dates.add(b.getKeyAsString());
-                bytesSent.add((long) bytesSentThisDay.getValue());
-            });
+        // For each day, populate dates and bytesSent
+        bucketList.forEach(b -> {
+            ParsedSum bytesSentThisDay = b
+                .getAggregations()
+                .get(sub_agg_name);
 
-            dto.setYaxis(bytesSent);
-            dto.setXaxis(dates);
+            log.debug("date: [{}], total bytes: [{}]",
+                      getFormattedString(b.getKeyAsString()),
+                      bytesSentThisDay.getValue());
 
-            return dto;
+            dates.add(b.getKeyAsString());
+            bytesSent.add((long) bytesSentThisDay.getValue());
+        });
 
-        } catch (Exception e) {
-            log.error(e.getMessage());
-        }
+        dto.setYaxis(bytesSent);
+        dto.setXaxis(dates);
 
         return dto;
     }
@@ -564,226 +764,637 @@ public class NetworkMonitoringService {
     public List<StackedSeriesDataPoint> aggregateRecentResponseCodes(String connector) {
         log.info("Starting aggregateRecentResponseCodes");
 
+        try {
+            return queryCache.get(CachedQuery.RESPONSE_CODES, connector, () -> {
+                List<StackedSeriesDataPoint> rolled = rollupRecentResponseCodes(connector);
+                return rolled != null ? rolled : searchRecentResponseCodes(connector);
+            });
+        } catch (Exception e) {
+            log.error(e.getMessage());
+        }
+
+        return new ArrayList<>();
+    }
+
+    private List<StackedSeriesDataPoint> rollupRecentResponseCodes(String connector) throws IOException {
+        Instant rounded3dAgo = Instant.now().minus(2, ChronoUnit.DAYS).truncatedTo(ChronoUnit.DAYS);
+        List<DailyRollup> summaries = dailySummariesSince(rounded3dAgo, connector);
+        if (summaries == null) {
+            return null;
+        }
+
+        return responseCodesPerDay(summaries);
+    }
+
+    private List<StackedSeriesDataPoint> responseCodesPerDay(List<DailyRollup> summaries) {
+        List<StackedSeriesDataPoint> stackedSeriesData = new ArrayList<>();
+        summaries.forEach(summary -> {
+            String date = histogramKey(summary);
+
+            // Add dummy data point for each date so that no bucket is missing
+            StackedSeriesDataPoint dummyDataPoint = new StackedSeriesDataPoint();
+            dummyDataPoint.setCategory(date);
+            dummyDataPoint.setName(null);
+            dummyDataPoint.setDataPoint(0L);
+            stackedSeriesData.add(dummyDataPoint);
+
+            // the top response codes, like the terms aggregation of the logs
+            summary.getResponseCodes().entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+                .limit(TOP_TERMS)
+                .forEach(e -> {
+                    StackedSeriesDataPoint dataPoint = new StackedSeriesDataPoint();
+                    dataPoint.setCategory(date); // Date
+                    dataPoint.setName(e.getKey()); // Response code
+                    dataPoint.setDataPoint(e.getValue()); // Number of responses
+                    stackedSeriesData.add(dataPoint);
+                });
+        });
+
+        return stackedSeriesData;
+    }
+
+    private List<StackedSeriesDataPoint> searchRecentResponseCodes(String connector) throws IOException {
         List<StackedSeriesDataPoint> stackedSeriesData = new ArrayList<>();
 
         String agg_name = "per_day";
         String sub_agg_name = "hits_per_response_code";
 
-        try {
-            Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
-            Instant rounded3dAgo = now.minus(2, ChronoUnit.DAYS).truncatedTo(ChronoUnit.DAYS);
-            log.debug("instants: {} {}", now, rounded3dAgo);
+        Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        Instant rounded3dAgo = now.minus(2, ChronoUnit.DAYS).truncatedTo(ChronoUnit.DAYS);
+        log.debug("instants: {} {}", now, rounded3dAgo);
+
+        // Only get data for the last 3 days
+        RangeQueryBuilder rangeQuery = QueryBuilders.rangeQuery("@timestamp")
+                .lte(now.toString())
+                .gte(rounded3dAgo.toString());
+
+        // Aggregate per response code
+        AggregationBuilder subAggregation = AggregationBuilders
+            .terms(sub_agg_name)
+            .field("response.keyword");
+
+        // Aggregate data per day
+        DateHistogramAggregationBuilder aggregation = AggregationBuilders
+                .dateHistogram(agg_name)
+                .field("@timestamp")
+                .fixedInterval(DateHistogramInterval.DAY)
+                .minDocCount(0)
+                .missing(0)
+                .extendedBounds(
+                        new LongBounds(rounded3dAgo.toString(), now.toString())
+                )
+                .subAggregation(subAggregation);
 
-            // Only get data for the last 3 days
-            RangeQueryBuilder rangeQuery = QueryBuilders.rangeQuery("@timestamp")
-                    .lte(now.toString())
-                    .gte(rounded3dAgo.toString());
+        QueryBuilder query;
+        if (connector == null) {
+            query = QueryBuilders.boolQuery()
+                .must(rangeQuery);
+        }
+        else {
+            // Only search for logs from the specified connector
+            TermQueryBuilder connectorQuery =
+                QueryBuilders.termQuery(CONNECTOR_ID_FIELD, connector);
+            query = QueryBuilders.boolQuery()
+                .must(rangeQuery)
+                .must(connectorQuery);
+        }
 
-            // Aggregate per response code
-            AggregationBuilder subAggregation = AggregationBuilders
-                .terms(sub_agg_name)
-                .field("response.keyword");
+        SearchRequest searchRequest = new SearchRequest(indexResolver.resolve(rounded3dAgo, now))
+            .indicesOptions(IndexResolver.INDICES_OPTIONS);
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+        searchSourceBuilder.query(query).aggregation(aggregation);
 
-            // Aggregate data per day
-            DateHistogramAggregationBuilder aggregation = AggregationBuilders
-                    .dateHistogram(agg_name)
-                    .field("@timestamp")
-                    .fixedInterval(DateHistogramInterval.DAY)
-                    .minDocCount(0)
-                    .missing(0)
-                    .extendedBounds(
-                            new LongBounds(rounded3dAgo.toString(), now.toString())
-                    )
-                    .subAggregation(subAggregation);
+        searchRequest.source(searchSourceBuilder);
 
-            QueryBuilder query;
-            if (connector == null) {
-                query = QueryBuilders.boolQuery()
-                    .must(rangeQuery);
-            }
-            else {
-                // Only search for logs from the specified connector
-                TermQueryBuilder connectorQuery =
-                    QueryBuilders.termQuery(CONNECTOR_ID_FIELD, connector);
-                query = QueryBuilders.boolQuery()
-                    .must(rangeQuery)
-                    .must(connectorQuery);
-            }
+        SearchResponse searchResponse =
+            searches.search("response-codes", connector, searchRequest);
 
-            SearchRequest searchRequest = new SearchRequest(index_wild);
-            SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
-            searchSourceBuilder.query(query).aggregation(aggregation);
+        log.debug("total count: {}",
+                  searchResponse.getHits().getTotalHits().value);
 
-            searchRequest.source(searchSourceBuilder);
+        ParsedDateHistogram dateGroupBy = searchResponse.getAggregations()
+            .get(agg_name);
 
-            SearchResponse searchResponse =
-                client.search(searchRequest, RequestOptions.DEFAULT);
+        List<? extends Histogram.Bucket> bucketList = dateGroupBy.getBuckets();
 
-            log.debug("total count: {}",
-                      searchResponse.getHits().getTotalHits().value);
+        // For each day
+        bucketList.forEach(b -> {
+            log.debug("date: [{}], total hits: [{}] -------------------",
+                      getFormattedString(b.getKeyAsString()),
+                      b.getDocCount());
 
-            ParsedDateHistogram dateGroupBy = searchResponse.getAggregations()
-                .get(agg_name);
+            // Add dummy data point for each date so that no bucket is missing
+            StackedSeriesDataPoint dummyDataPoint = new StackedSeriesDataPoint();
+            dummyDataPoint.setCategory(b.getKeyAsString()); // Date
+            dummyDataPoint.setName(null); // null Response Code so it does not show up in the chart
+            dummyDataPoint.setDataPoint(new Long(0)); // Number of responses
+            stackedSeriesData.add(dummyDataPoint);
 
-            List<? extends Histogram.Bucket> bucketList = dateGroupBy.getBuckets();
+            ParsedStringTerms responsesPerResponseCode = b
+                .getAggregations()
+                .get(sub_agg_name);
 
-            // For each day
-            bucketList.forEach(b -> {
-                log.debug("date: [{}], total hits: [{}] -------------------",
-                          getFormattedString(b.getKeyAsString()),
-                          b.getDocCount());
+            List<? extends Bucket> subBucketList = responsesPerResponseCode
+                .getBuckets();
 
-                // Add dummy data point for each date so that no bucket is missing
-                StackedSeriesDataPoint dummyDataPoint = new StackedSeriesDataPoint();
-                dummyDataPoint.setCategory(b.getKeyAsString()); // Date
-                dummyDataPoint.setName(null); // null Response Code so it does not show up in the chart
-                dummyDataPoint.setDataPoint(new Long(0)); // Number of responses
-                stackedSeriesData.add(dummyDataPoint);
+            // For each response code
+            subBucketList.forEach(sb -> {
+                log.debug("date: [{}], response code: [{}], hits: [{}]",
+                         b.getKeyAsString(),
+                         sb.getKeyAsString(),
+                         sb.getDocCount());
+                StackedSeriesDataPoint dataPoint = new StackedSeriesDataPoint();
+                dataPoint.setCategory(b.getKeyAsString()); // Date
+                dataPoint.setName(sb.getKeyAsString()); // Response code
+                dataPoint.setDataPoint(sb.getDocCount()); // Number of responses
+                stackedSeriesData.add(dataPoint);
+            });
 
-                ParsedStringTerms responsesPerResponseCode = b
-                    .getAggregations()
-                    .get(sub_agg_name);
+        });
 
-                List<? extends Bucket> subBucketList = responsesPerResponseCode
-                    .getBuckets();
+        return stackedSeriesData;
+    }
 
-                // For each response code
-                subBucketList.forEach(sb -> {
-                    log.debug("date: [{}], response code: [{}], hits: [{}]",
-                             b.getKeyAsString(),
-                             sb.getKeyAsString(),
-                             sb.getDocCount());
-                    StackedSeriesDataPoint dataPoint = new StackedSeriesDataPoint();
-                    dataPoint.setCategory(b.getKeyAsString()); // Date
-                    dataPoint.setName(sb.getKeyAsString()); // Response code
-                    dataPoint.setDataPoint(sb.getDocCount()); // Number of responses
-                    stackedSeriesData.add(dataPoint);
-                });
+    /**
+     * Function that returns several widgets of a connector dashboard at once, instead of one
+     * request per widget
+     *
+     * The daily widgets are all derived from the same daily summaries of the last 30 days: the
+     * rollups are read once and today is summarised once for all of them. When a closed day is not
+     * rolled up, they come from a single search over the last 30 days instead, with one sibling
+     * aggregation per widget over its own range. The hourly histogram and the health check are
+     * served from their own in memory state, as on their own endpoints.
+     *
+     * @param connector - connector id
+     * @param widgets - the widgets to return
+     * @return DashboardDto - the widgets not asked for are null
+     */
+    public DashboardDto queryDashboard(String connector, Set<Widget> widgets) {
+        log.info("Starting queryDashboard for widgets {}", widgets);
+        DashboardDto dto = new DashboardDto();
+
+        try {
+            if (widgets.contains(Widget.HTTP_MONTHLY) || widgets.contains(Widget.HTTP_MONTHLY_PER_COUNTRY)
+                    || widgets.contains(Widget.HTTP_BYTES_SENT) || widgets.contains(Widget.HTTP_RESPONSE_CODES)) {
+                Instant rounded30dAgo = Instant.now().minus(30, ChronoUnit.DAYS).truncatedTo(ChronoUnit.DAYS);
+                List<DailyRollup> summaries = dailySummariesSince(rounded30dAgo, connector);
+                if (summaries != null) {
+                    dashboardFromSummaries(dto, widgets, summaries);
+                } else {
+                    searchDashboard(dto, widgets, connector, rounded30dAgo);
+                }
+            }
+            if (widgets.contains(Widget.HTTP_HOURLY)) {
+                dto.setHttpHourly(query24hourEntriesCount(connector));
+            }
+            if (widgets.contains(Widget.CONNECTORS_HEALTH_CHECK)) {
+                dto.setConnectorsHealthCheck(getHealthCheck());
+            }
+        } catch (Exception e) {
+            log.error(e.getMessage());
+        }
 
+        return dto;
+    }
+
+    private void dashboardFromSummaries(DashboardDto dto, Set<Widget> widgets, List<DailyRollup> summaries) {
+        // the summaries run from 30 days ago up to today, the monthly widget shows the last 15 days
+        if (widgets.contains(Widget.HTTP_MONTHLY)) {
+            List<DailyRollup> lastDays = summaries.subList(Math.max(summaries.size() - 15, 0), summaries.size());
+            HttpTransactionsDto monthly = new HttpTransactionsDto();
+            monthly.setXaxis(lastDays.stream().map(DailyRollup::getDay).collect(Collectors.toList()));
+            monthly.setYaxis(lastDays.stream().map(DailyRollup::getHits).collect(Collectors.toList()));
+            dto.setHttpMonthly(monthly);
+        }
+        if (widgets.contains(Widget.HTTP_MONTHLY_PER_COUNTRY)) {
+            dto.setHttpMonthlyPerCountry(topCountries(summaries));
+        }
+        List<DailyRollup> recentDays = summaries.subList(Math.max(summaries.size() - 3, 0), summaries.size());
+        if (widgets.contains(Widget.HTTP_BYTES_SENT)) {
+            dto.setHttpBytesSent(bytesSentPerDay(recentDays));
+        }
+        if (widgets.contains(Widget.HTTP_RESPONSE_CODES)) {
+            dto.setHttpResponseCodes(responseCodesPerDay(recentDays));
+        }
+    }
+
+    private void searchDashboard(DashboardDto dto, Set<Widget> widgets, String connector, Instant rounded30dAgo)
+            throws IOException {
+        Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        Instant rounded15dAgo = now.minus(14, ChronoUnit.DAYS).truncatedTo(ChronoUnit.DAYS);
+        Instant rounded3dAgo = now.minus(2, ChronoUnit.DAYS).truncatedTo(ChronoUnit.DAYS);
+
+        // the shared range is the longest one, each widget narrows it with a filter aggregation
+        BoolQueryBuilder query = QueryBuilders.boolQuery()
+            .filter(QueryBuilders.rangeQuery("@timestamp")
+                    .lte(now.toString())
+                    .gte(rounded30dAgo.toString()));
+        if (connector != null) {
+            query.filter(QueryBuilders.termQuery(CONNECTOR_ID_FIELD, connector));
+        }
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder().size(0).query(query);
+
+        if (widgets.contains(Widget.HTTP_MONTHLY)) {
+            searchSourceBuilder.aggregation(AggregationBuilders
+                .filter("monthly", QueryBuilders.rangeQuery("@timestamp").gte(rounded15dAgo.toString()))
+                .subAggregation(dailyHistogram(rounded15dAgo, now)));
+        }
+        if (widgets.contains(Widget.HTTP_MONTHLY_PER_COUNTRY)) {
+            searchSourceBuilder.aggregation(AggregationBuilders
+                .terms("hits_per_country")
+                .field("client_geoip.country_code2.keyword")
+                .size(TOP_TERMS)
+                .subAggregation(AggregationBuilders
+                    .terms("get_country_name")
+                    .field("client_geoip.country_name.keyword")
+                    .size(1)));
+        }
+        if (widgets.contains(Widget.HTTP_BYTES_SENT) || widgets.contains(Widget.HTTP_RESPONSE_CODES)) {
+            DateHistogramAggregationBuilder recentPerDay = dailyHistogram(rounded3dAgo, now)
+                .subAggregation(AggregationBuilders.sum("sum_bytes_sent").field("bytes"))
+                .subAggregation(AggregationBuilders.terms("hits_per_response_code").field("response.keyword").size(TOP_TERMS));
+            searchSourceBuilder.aggregation(AggregationBuilders
+                .filter("recent", QueryBuilders.rangeQuery("@timestamp").gte(rounded3dAgo.toString()))
+                .subAggregation(recentPerDay));
+        }
+
+        SearchRequest searchRequest = new SearchRequest(indexResolver.resolve(rounded30dAgo, now))
+            .indicesOptions(IndexResolver.INDICES_OPTIONS)
+            .source(searchSourceBuilder);
+        Aggregations aggregations = searches.search("dashboard", connector, searchRequest).getAggregations();
+
+        if (widgets.contains(Widget.HTTP_MONTHLY)) {
+            ParsedFilter monthly = aggregations.get("monthly");
+            ParsedDateHistogram perDay = monthly.getAggregations().get("per_day");
+            HttpTransactionsDto monthlyDto = new HttpTransactionsDto();
+            monthlyDto.setXaxis(perDay.getBuckets().stream()
+                    .map(b -> RollupService.DAY_FORMATTER.format((ZonedDateTime) b.getKey()))
+                    .collect(Collectors.toList()));
+            monthlyDto.setYaxis(perDay.getBuckets().stream().map(Histogram.Bucket::getDocCount).collect(Collectors.toList()));
+            dto.setHttpMonthly(monthlyDto);
+        }
+        if (widgets.contains(Widget.HTTP_MONTHLY_PER_COUNTRY)) {
+            List<CountryHitsCount> countryHitsCountList = new ArrayList<>();
+            ParsedStringTerms hitsPerCountry = aggregations.get("hits_per_country");
+            hitsPerCountry.getBuckets().forEach(b -> {
+                ParsedStringTerms countryName = b.getAggregations().get("get_country_name");
+                if (!countryName.getBuckets().isEmpty()) {
+                    countryHitsCountList.add(new CountryHitsCount(
+                            b.getKeyAsString(), countryName.getBuckets().get(0).getKeyAsString(), b.getDocCount()));
+                }
             });
+            dto.setHttpMonthlyPerCountry(countryHitsCountList);
+        }
+        if (widgets.contains(Widget.HTTP_BYTES_SENT) || widgets.contains(Widget.HTTP_RESPONSE_CODES)) {
+            ParsedFilter recent = aggregations.get("recent");
+            ParsedDateHistogram perDay = recent.getAggregations().get("per_day");
 
-            return stackedSeriesData;
+            List<String> dates = new ArrayList<>();
+            List<Long> bytesSent = new ArrayList<>();
+            List<StackedSeriesDataPoint> stackedSeriesData = new ArrayList<>();
+            perDay.getBuckets().forEach(b -> {
+                ParsedSum bytesSentThisDay = b.getAggregations().get("sum_bytes_sent");
+                dates.add(b.getKeyAsString());
+                bytesSent.add((long) bytesSentThisDay.getValue());
 
-        } catch (Exception e) {
-            log.error(e.getMessage());
+                // dummy data point so that no bucket is missing
+                stackedSeriesData.add(dataPoint(b.getKeyAsString(), null, 0L));
+                ParsedStringTerms responsesPerResponseCode = b.getAggregations().get("hits_per_response_code");
+                responsesPerResponseCode.getBuckets().forEach(sb ->
+                    stackedSeriesData.add(dataPoint(b.getKeyAsString(), sb.getKeyAsString(), sb.getDocCount())));
+            });
+
+            if (widgets.contains(Widget.HTTP_BYTES_SENT)) {
+                HttpTransactionsDto bytesDto = new HttpTransactionsDto();
+                bytesDto.setXaxis(dates);
+                bytesDto.setYaxis(bytesSent);
+                dto.setHttpBytesSent(bytesDto);
+            }
+            if (widgets.contains(Widget.HTTP_RESPONSE_CODES)) {
+                dto.setHttpResponseCodes(stackedSeriesData);
+            }
         }
+    }
 
-        return stackedSeriesData;
+    private DateHistogramAggregationBuilder dailyHistogram(Instant from, Instant to) {
+        return AggregationBuilders
+                .dateHistogram("per_day")
+                .field("@timestamp")
+                .fixedInterval(DateHistogramInterval.DAY)
+                .minDocCount(0)
+                .extendedBounds(new LongBounds(from.toString(), to.toString()));
     }
 
     /**
-     * Function that returns a list of all the connectors from which we have
-     * received logs
+     * Function that returns a DTO containing transactions per bucket of a planned time range
      *
-     * @return List<String>
+     * @param plan - time range and interval, from QueryPlanner
+     * @param connector - connector id
+     * @return DTO of the HTTP transactions
      */
-    public List<String> queryConnectors() {
-        log.info("Starting queryConnectors");
+    public HttpTransactionsDto queryHits(QueryPlan plan, String connector) {
+        log.debug("Starting queryHits {}", plan);
+        HttpTransactionsDto dto = new HttpTransactionsDto();
 
-        List<String> connectors = new ArrayList<>();
+        try {
+            List<DailyRollup> summaries = plannedSummaries(plan, connector);
+            if (summaries != null) {
+                dto.setXaxis(summaries.stream().map(s -> HOUR_FORMATTER.format(dayStart(s))).collect(Collectors.toList()));
+                dto.setYaxis(summaries.stream().map(DailyRollup::getHits).collect(Collectors.toList()));
+                return dto;
+            }
 
-        String agg_name = "per_connector";
+            ParsedDateHistogram histogram = searchPlannedHistogram("planned-hits", plan, connector, null);
+            List<String> dates = new ArrayList<>();
+            List<Long> hits = new ArrayList<>();
+            histogram.getBuckets().forEach(b -> {
+                dates.add(getFormattedString(b.getKeyAsString()));
+                hits.add(b.getDocCount());
+            });
+            dto.setXaxis(dates);
+            dto.setYaxis(hits);
+        } catch (Exception e) {
+            log.error(e.getMessage());
+        }
+
+        return dto;
+    }
+
+    /**
+     * Function that returns a count of hits per country over a planned time range
+     *
+     * @param plan - time range, from QueryPlanner
+     * @param connector - connector id
+     * @return List<CountryHitsCount>
+     */
+    public List<CountryHitsCount> aggregateHitsPerCountry(QueryPlan plan, String connector) {
+        log.debug("Starting aggregateHitsPerCountry {}", plan);
 
         try {
+            // the whole range is one bucket, so any range of whole days can use the rollups
+            List<DailyRollup> summaries = rangeSummaries(plan.getFrom(), plan.getTo(), connector);
+            if (summaries != null) {
+                return topCountries(summaries);
+            }
+
+            String agg_name = "hits_per_country";
+            String sub_agg_name = "get_country_name";
             AggregationBuilder aggregation = AggregationBuilders
                 .terms(agg_name)
-                .field(CONNECTOR_ID_FIELD);
+                .field("client_geoip.country_code2.keyword")
+                .size(TOP_TERMS)
+                .subAggregation(AggregationBuilders
+                    .terms(sub_agg_name)
+                    .field("client_geoip.country_name.keyword")
+                    .size(1));
 
-            SearchRequest searchRequest = new SearchRequest(index_wild);
-            SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
-            searchSourceBuilder.aggregation(aggregation);
-            searchRequest.source(searchSourceBuilder);
+            SearchResponse searchResponse = searches.search("planned-hits-per-country", connector,
+                    plannedSearchRequest(plan, connector, new SearchSourceBuilder().aggregation(aggregation)));
 
-            SearchResponse searchResponse =
-                client.search(searchRequest, RequestOptions.DEFAULT);
+            List<CountryHitsCount> countryHitsCountList = new ArrayList<>();
+            ParsedStringTerms hitsPerCountry = searchResponse.getAggregations().get(agg_name);
+            hitsPerCountry.getBuckets().forEach(b -> {
+                ParsedStringTerms countryName = b.getAggregations().get(sub_agg_name);
+                if (!countryName.getBuckets().isEmpty()) {
+                    countryHitsCountList.add(new CountryHitsCount(
+                            b.getKeyAsString(), countryName.getBuckets().get(0).getKeyAsString(), b.getDocCount()));
+                }
+            });
+            return countryHitsCountList;
+        } catch (Exception e) {
+            log.error(e.getMessage());
+        }
 
-            log.debug("total count: {}",
-                      searchResponse.getHits().getTotalHits().value);
+        return new ArrayList<>();
+    }
 
+    /**
+     * Function that returns the sum of bytes sent per bucket of a planned time range
+     *
+     * @param plan - time range and interval, from QueryPlanner
+     * @param connector - connector id
+     * @return HttpTransactionsDto
+     */
+    public HttpTransactionsDto aggregateBytesSent(QueryPlan plan, String connector) {
+        log.debug("Starting aggregateBytesSent {}", plan);
+        HttpTransactionsDto dto = new HttpTransactionsDto();
 
-            ParsedStringTerms results = searchResponse.getAggregations().get(agg_name);
+        try {
+            List<DailyRollup> summaries = plannedSummaries(plan, connector);
+            if (summaries != null) {
+                return bytesSentPerDay(summaries);
+            }
 
-            List<? extends Bucket> bucketList = results.getBuckets();
+            String sub_agg_name = "sum_bytes_sent";
+            ParsedDateHistogram histogram = searchPlannedHistogram("planned-bytes-sent", plan, connector,
+                    AggregationBuilders.sum(sub_agg_name).field("bytes"));
+            List<String> dates = new ArrayList<>();
+            List<Long> bytesSent = new ArrayList<>();
+            histogram.getBuckets().forEach(b -> {
+                ParsedSum bytesSentThisBucket = b.getAggregations().get(sub_agg_name);
+                dates.add(b.getKeyAsString());
+                bytesSent.add((long) bytesSentThisBucket.getValue());
+            });
+            dto.setXaxis(dates);
+            dto.setYaxis(bytesSent);
+        } catch (Exception e) {
+            log.error(e.getMessage());
+        }
 
-            // For each result, populate connectors array
-            bucketList.forEach(b -> {
-                log.debug("connector: [{}], total hits: [{}]",
-                          b.getKeyAsString(),
-                          b.getDocCount());
+        return dto;
+    }
 
-                connectors.add(b.getKeyAsString());
-            });
+    /**
+     * Function that returns the top response codes per bucket of a planned time range
+     *
+     * @param plan - time range and interval, from QueryPlanner
+     * @param connector - connector id
+     * @return List<StackedSeriesDataPoint>
+     */
+    public List<StackedSeriesDataPoint> aggregateResponseCodes(QueryPlan plan, String connector) {
+        log.debug("Starting aggregateResponseCodes {}", plan);
+        List<StackedSeriesDataPoint> stackedSeriesData = new ArrayList<>();
 
-            return connectors;
+        try {
+            List<DailyRollup> summaries = plannedSummaries(plan, connector);
+            if (summaries != null) {
+                return responseCodesPerDay(summaries);
+            }
 
+            String sub_agg_name = "hits_per_response_code";
+            ParsedDateHistogram histogram = searchPlannedHistogram("planned-response-codes", plan, connector,
+                    AggregationBuilders.terms(sub_agg_name).field("response.keyword").size(TOP_TERMS));
+            histogram.getBuckets().forEach(b -> {
+                // dummy data point so that no bucket is missing
+                stackedSeriesData.add(dataPoint(b.getKeyAsString(), null, 0L));
+                ParsedStringTerms responsesPerResponseCode = b.getAggregations().get(sub_agg_name);
+                responsesPerResponseCode.getBuckets().forEach(sb ->
+                    stackedSeriesData.add(dataPoint(b.getKeyAsString(), sb.getKeyAsString(), sb.getDocCount())));
+            });
         } catch (Exception e) {
             log.error(e.getMessage());
         }
 
-        return connectors;
+        return stackedSeriesData;
     }
 
     /**
-     * Function that returns a list of all the connectors from which we have
-     * received logs along with the timestamp of the last log
+     * Function that returns one summary per bucket of a daily plan, from the rollups where the
+     * day is rolled up and live otherwise
      *
-     * @return List<HealthCheckResult>
+     * @return List<DailyRollup> - or null if the plan is not daily or too many days are not rolled up
      */
-    public List<HealthCheckResult> getHealthCheck() {
-        log.info("Starting getHealthCheck");
+    private List<DailyRollup> plannedSummaries(QueryPlan plan, String connector) throws IOException {
+        if (!plan.isDaily()) {
+            return null;
+        }
+        return rangeSummaries(plan.getFrom(), plan.getTo(), connector);
+    }
 
-        List<HealthCheckResult> healthCheckResults = new ArrayList<>();
+    /**
+     * Function that returns one summary per UTC day of a time range. Days that are not rolled up
+     * and the partial days at the ends of the range are summarised live
+     *
+     * @return List<DailyRollup> - or null if more than `monitoring.planner.max-live-days` days
+     * would be summarised live
+     */
+    private List<DailyRollup> rangeSummaries(Instant from, Instant to, String connector) throws IOException {
+        if (!rollupService.isEnabled()) {
+            return null;
+        }
 
-        String sub_agg_name = "latest_timestamp";
-        String agg_name = "per_connector";
+        List<Instant> dayStarts = new ArrayList<>();
+        for (Instant day = from.truncatedTo(ChronoUnit.DAYS); day.isBefore(to); day = day.plus(1, ChronoUnit.DAYS)) {
+            dayStarts.add(day);
+        }
+        List<String> wholeDays = dayStarts.stream()
+                .filter(day -> !day.isBefore(from) && !day.plus(1, ChronoUnit.DAYS).isAfter(to))
+                .map(RollupService.DAY_FORMATTER::format)
+                .collect(Collectors.toList());
 
-        try {
-            // Get the most recent timestamp
-            AggregationBuilder subAggregation = AggregationBuilders
-                .max(sub_agg_name)
-                .field("@timestamp");
+        Map<String, DailyRollup> rolledDays = rollupService.getRolledDays(wholeDays, connector);
+        if (dayStarts.size() - rolledDays.size() > config.getMonitoring().getPlanner().getMaxLiveDays()) {
+            log.debug("{} of {} days rolled up, querying the logs", rolledDays.size(), dayStarts.size());
+            return null;
+        }
 
-            // Aggregate per connector ID
-            AggregationBuilder aggregation = AggregationBuilders
-                .terms(agg_name)
-                .field(CONNECTOR_ID_FIELD);
+        List<DailyRollup> summaries = new ArrayList<>();
+        for (Instant day : dayStarts) {
+            DailyRollup rolled = rolledDays.get(RollupService.DAY_FORMATTER.format(day));
+            if (rolled != null) {
+                summaries.add(rolled);
+            } else {
+                Instant start = day.isBefore(from) ? from : day;
+                Instant end = day.plus(1, ChronoUnit.DAYS).isAfter(to) ? to : day.plus(1, ChronoUnit.DAYS);
+                summaries.add(rollupService.summarize(start, end, connector));
+            }
+        }
+        return summaries;
+    }
 
-            SearchRequest searchRequest = new SearchRequest(index_wild);
-            SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
-            searchSourceBuilder.aggregation(aggregation.subAggregation(subAggregation));
-            searchRequest.source(searchSourceBuilder);
+    /**
+     * Function that runs the date histogram of a plan over the logs
+     *
+     * @param query - name of the query in the elasticsearch.query metrics
+     * @param subAggregation - aggregation computed inside each bucket, or null for counts only
+     */
+    private ParsedDateHistogram searchPlannedHistogram(String query, QueryPlan plan, String connector,
+            AggregationBuilder subAggregation) throws IOException {
+        String agg_name = "per_interval";
+
+        DateHistogramAggregationBuilder aggregation = AggregationBuilders
+                .dateHistogram(agg_name)
+                .field("@timestamp")
+                .fixedInterval(plan.getHistogramInterval())
+                .minDocCount(0)
+                .extendedBounds(new LongBounds(plan.getFrom().toEpochMilli(), plan.getTo().toEpochMilli() - 1));
+        if (subAggregation != null) {
+            aggregation.subAggregation(subAggregation);
+        }
 
-            SearchResponse searchResponse =
-                client.search(searchRequest, RequestOptions.DEFAULT);
+        SearchResponse searchResponse = searches.search(query, connector,
+                plannedSearchRequest(plan, connector, new SearchSourceBuilder().aggregation(aggregation)));
+        return searchResponse.getAggregations().get(agg_name);
+    }
+
+    /**
+     * Function that returns an aggregation only search over the range of a plan
+     */
+    private SearchRequest plannedSearchRequest(QueryPlan plan, String connector, SearchSourceBuilder source) {
+        BoolQueryBuilder query = QueryBuilders.boolQuery()
+            .filter(QueryBuilders.rangeQuery("@timestamp")
+                    .gte(plan.getFrom().toString())
+                    .lt(plan.getTo().toString()));
+        if (connector != null) {
+            query.filter(QueryBuilders.termQuery(CONNECTOR_ID_FIELD, connector));
+        }
 
-            ParsedStringTerms results = searchResponse.getAggregations().get(agg_name);
+        return new SearchRequest(indexResolver.resolve(plan.getFrom(), plan.getTo()))
+            .indicesOptions(IndexResolver.INDICES_OPTIONS)
+            .source(source.size(0).query(query));
+    }
 
-            List<? extends Bucket> bucketList = results.getBuckets();
+    private List<CountryHitsCount> topCountries(List<DailyRollup> summaries) {
+        Map<String, Long> hitsPerCountry = new HashMap<>();
+        Map<String, String> countryNames = new HashMap<>();
+        summaries.forEach(summary -> {
+            summary.getCountries().forEach((code, hits) -> hitsPerCountry.merge(code, hits, Long::sum));
+            countryNames.putAll(summary.getCountryNames());
+        });
+
+        // the top countries, like the terms aggregation of the logs
+        return hitsPerCountry.entrySet().stream()
+                .filter(e -> countryNames.containsKey(e.getKey()))
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+                .limit(TOP_TERMS)
+                .map(e -> new CountryHitsCount(e.getKey(), countryNames.get(e.getKey()), e.getValue()))
+                .collect(Collectors.toList());
+    }
 
-            // For each connector, populate healthCheckResult
-            bucketList.forEach(b -> {
-                ParsedMax latestTimestamp = b
-                    .getAggregations()
-                    .get(sub_agg_name);
+    private StackedSeriesDataPoint dataPoint(String category, String name, Long value) {
+        StackedSeriesDataPoint dataPoint = new StackedSeriesDataPoint();
+        dataPoint.setCategory(category); // Date
+        dataPoint.setName(name); // Response code, null for the dummy points
+        dataPoint.setDataPoint(value); // Number of responses
+        return dataPoint;
+    }
 
-                log.debug("connector: [{}], last log timestamp: [{}]",
-                         b.getKeyAsString(),
-                         (long) latestTimestamp.getValue());
+    /**
+     * Function that returns a list of all the connectors from which we have
+     * received logs within the connector registry lookback window
+     *
+     * @return List<String>
+     */
+    public List<String> queryConnectors() {
+        log.info("Starting queryConnectors");
 
+        try {
+            return connectorRegistry.getConnectors();
+        } catch (Exception e) {
+            log.error(e.getMessage());
+        }
 
-                HealthCheckResult healthCheckResult = new HealthCheckResult();
-                healthCheckResult.setConnector(b.getKeyAsString());
-                healthCheckResult.setTimestamp((long) latestTimestamp.getValue());
-                healthCheckResults.add(healthCheckResult);
-            });
+        return new ArrayList<>();
+    }
 
-            return healthCheckResults;
+    /**
+     * Function that returns a list of all the connectors from which we have
+     * received logs within the connector registry lookback window, along with
+     * the timestamp of the last log
+     *
+     * @return List<HealthCheckResult>
+     */
+    public List<HealthCheckResult> getHealthCheck() {
+        log.info("Starting getHealthCheck");
 
+        try {
+            return connectorRegistry.getHealthCheck();
         } catch (Exception e) {
             log.error(e.getMessage());
         }
 
-        return healthCheckResults;
+        return new ArrayList<>();
     }
 
     /**
@@ -799,118 +1410,25 @@ public class NetworkMonitoringService {
         List<AdvancedFilteringResult> advancedFilteringResults = new ArrayList<>();
 
         try {
-            BoolQueryBuilder query = QueryBuilders.boolQuery();
-
-            // >>> connector filter
-            if (filter.connector != null) {
-                QueryBuilder connectorQuery = QueryBuilders.termQuery(CONNECTOR_ID_FIELD, filter.connector);
-                query.must(connectorQuery);
-            }
-
-            // >>> dateFrom and dateTo filter
-            log.debug("dateFrom and dateTo: {} {}", filter.dateFrom, filter.dateTo);
-            if (!((filter.dateFrom == null) && (filter.dateTo == null))) {
-                QueryBuilder dateRangeQuery = null;
-                if (filter.dateFrom == null) {
-                    Instant dateTo = Instant.parse(filter.dateTo);
-                    // Search from "beginning of time" until dateTo
-                    dateRangeQuery = QueryBuilders.rangeQuery("@timestamp")
-                        .lte(dateTo.toString());
-                }
-                else if (filter.dateTo == null) {
-                    Instant dateFrom = Instant.parse(filter.dateFrom);
-                    // Search from dateFrom until now
-                    dateRangeQuery = QueryBuilders.rangeQuery("@timestamp")
-                        .gte(dateFrom.toString());
-                }
-                else {
-                    Instant dateTo = Instant.parse(filter.dateTo);
-                    Instant dateFrom = Instant.parse(filter.dateFrom);
-                    dateRangeQuery = QueryBuilders.rangeQuery("@timestamp")
-                        .lte(dateTo.toString())
-                        .gte(dateFrom.toString());
-                }
-                query.must(dateRangeQuery);
-            }
-
-            // >>> bytesSentMin and bytesSentMax filter
-            log.debug("bytesSentMin and bytesSentMax: {} {}", filter.bytesSentMin, filter.bytesSentMax);
-            if (!((filter.bytesSentMin == null) && (filter.bytesSentMax == null))) {
-                QueryBuilder bytesRangeQuery = null;
-                if (filter.bytesSentMin == null) {
-                    bytesRangeQuery = QueryBuilders.rangeQuery("bytes")
-                        .lte(Integer.parseInt(filter.bytesSentMax));
-                }
-                else if (filter.bytesSentMax == null) {
-                    bytesRangeQuery = QueryBuilders.rangeQuery("bytes")
-                        .gte(Integer.parseInt(filter.bytesSentMin));
-                }
-                else {
-                    bytesRangeQuery = QueryBuilders.rangeQuery("bytes")
-                        .lte(Integer.parseInt(filter.bytesSentMax))
-                        .gte(Integer.parseInt(filter.bytesSentMin));
-                }
-                query.must(bytesRangeQuery);
-            }
-
-            // >>> clientIPs filter
-            if (filter.clientIPs != null && filter.clientIPs.size() != 0) {
-                QueryBuilder clientIPsQuery = QueryBuilders.termsQuery("client_geoip.ip.keyword", filter.clientIPs);
-                query.must(clientIPsQuery);
-            }
-
-            // >>> requestMethods filter
-            if (filter.requestMethods != null && filter.requestMethods.size() != 0) {
-                QueryBuilder requestMethodsQuery = QueryBuilders.termsQuery("verb.keyword", filter.requestMethods);
-                query.must(requestMethodsQuery);
-            }
-
-            // >>> responseCodes filter
-            if (filter.responseCodes != null && filter.responseCodes.size() != 0) {
-                QueryBuilder responseCodesQuery = QueryBuilders.termsQuery("response.keyword", filter.responseCodes);
-                query.must(responseCodesQuery);
-            }
-
-            // >>> countries filter
-            if (filter.countries != null && filter.countries.size() != 0) {
-                QueryBuilder countriesQuery = QueryBuilders.termsQuery("client_geoip.country_code2.keyword", filter.countries);
-                query.must(countriesQuery);
-            }
-
-            log.debug("query is {}", query);
+            BoolQueryBuilder query = advancedFilteringQueryCompiler.compile(filter);
 
             // >>> Perform search
             Query searchQuery = new NativeSearchQueryBuilder()
                 .withPageable(PageRequest.of(0, max_elastic_page_size))
                 .withQuery(query)
+                // the total is not shown, counting past the returned page is wasted work
+                .withTrackTotalHits(false)
+                .withIndicesOptions(IndicesOptions.LENIENT_EXPAND_OPEN)
                 .withSourceFilter(new FetchSourceFilter(
-                            new String[]{
-                                "@timestamp",
-                                "headers.x_forwarded_for", // Connector ID field
-                                "verb",
-                                "request",
-                                "headers.content_length",
-                                "response",
-                                "bytes",
-                                "client_geoip.ip",
-                                "user_agent.os",
-                                "user_agent.name",
-                                "client_geoip.country_code2",
-                                "client_geoip.city_name"
-                            },
+                            AdvancedFilteringQueryCompiler.SOURCE_FIELDS,
                             new String[]{}))
                 .build();
 
-            // Make sure we ask for logs where these fields exist
-            query.must(QueryBuilders.existsQuery("headers"))
-                 .must(QueryBuilders.existsQuery("user_agent"))
-                 .must(QueryBuilders.existsQuery("client_geoip"));
-
-            SearchHits<AdvancedFilteringResult> hits =
-                elasticsearchOperations
-                .search(searchQuery,
-                        AdvancedFilteringResult.class,
-                        IndexCoordinates.of(index_wild));
+            SearchHits<AdvancedFilteringResult> hits = searches.time("advanced-filtering", filter.getConnector(),
+                () -> elasticsearchOperations
+                    .search(searchQuery,
+                            AdvancedFilteringResult.class,
+                            IndexCoordinates.of(advancedFilteringQueryCompiler.indices(filter))));
             log.debug("hits: {}", hits.toString());
 
             advancedFilteringResults = hits.stream()
@@ -925,6 +1443,18 @@ public class NetworkMonitoringService {
         return advancedFilteringResults;
     }
 
+    /**
+     * Internal Function that returns the start of the day of a summary, formatted as the keys of
+     * the daily date histograms of elastic
+     */
+    private String histogramKey(DailyRollup summary) {
+        return HISTOGRAM_KEY_FORMATTER.format(dayStart(summary));
+    }
+
+    private Instant dayStart(DailyRollup summary) {
+        return LocalDate.parse(summary.getDay(), RollupService.DAY_FORMATTER).atStartOfDay(ZoneOffset.UTC).toInstant();
+    }
+
     /**
      * Internal Function that gets the timestamp from elastic and transforms it in a human readable
      * format to show to the frontend
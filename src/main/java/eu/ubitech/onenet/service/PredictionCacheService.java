@@ -0,0 +1,159 @@
+package eu.ubitech.onenet.service;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import eu.ubitech.onenet.config.PropertiesConfiguration.PredictionCacheProperties;
+import eu.ubitech.onenet.exceptions.InvalidParameterException;
+import eu.ubitech.onenet.model.AnomalyPrediction;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+/**
+ * Caches the anomaly detection predictions per `minutes` window, shared by the alerts SSE stream,
+ * the anomaly detection and the security report.
+ *
+ * Concurrent misses of the same window wait for a single call to analytics. Once a snapshot is
+ * older than `analytics-client.cache.refresh-seconds` the next read still returns it and triggers
+ * one background reload, so readers only block on the very first load of a window. If analytics
+ * stays unreachable, the snapshot expires after `expire-seconds` and reads fail again.
+ *
+ * Snapshots are immutable and replaced as a whole, every reader sees one consistent result. The
+ * timeslots of a snapshot are read-only copies of the ones analytics returned, down to the nested
+ * values of their other fields.
+ */
+@Slf4j
+@Service
+public class PredictionCacheService {
+
+    private final AnalyticsClient analyticsClient;
+    private final LoadingCache<String, PredictionSnapshot> snapshots;
+
+    public PredictionCacheService(
+            AnalyticsClient analyticsClient,
+            PropertiesConfiguration config,
+            MeterRegistry registry) {
+        PredictionCacheProperties properties = config.getAnalyticsClient().getCache();
+        this.analyticsClient = analyticsClient;
+        this.snapshots = Caffeine.newBuilder()
+                .maximumSize(properties.getMaxEntries())
+                .refreshAfterWrite(properties.getRefreshSeconds(), TimeUnit.SECONDS)
+                .expireAfterWrite(properties.getExpireSeconds(), TimeUnit.SECONDS)
+                .recordStats()
+                .build(this::load);
+        CaffeineCacheMetrics.monitor(registry, snapshots, "analytics.predictions");
+    }
+
+    /**
+     * Function that returns the predictions of the last minutes
+     *
+     * @param minutes - how many minutes back the predictions go, a positive integer
+     * @return PredictionSnapshot
+     */
+    public PredictionSnapshot get(String minutes) {
+        return snapshots.get(normalize(minutes));
+    }
+
+    // "60" and "060" are the same window and share one entry
+    static String normalize(String minutes) {
+        int value;
+        try {
+            value = Integer.parseInt(minutes.trim());
+        } catch (NullPointerException | NumberFormatException e) {
+            throw new InvalidParameterException();
+        }
+        if (value <= 0) {
+            throw new InvalidParameterException();
+        }
+        return String.valueOf(value);
+    }
+
+    private PredictionSnapshot load(String minutes) {
+        log.debug("loading predictions for the last {} minutes", minutes);
+        return new PredictionSnapshot(analyticsClient.getPredictions(minutes));
+    }
+
+    @Getter
+    public static class PredictionSnapshot {
+        private final Instant fetchedAt = Instant.now();
+        private final List<AnomalyPrediction> predictions;
+        // IPs with a negative status in any timeslot
+        private final List<String> abnormalIps;
+
+        PredictionSnapshot(List<AnomalyPrediction> predictions) {
+            List<AnomalyPrediction> frozen = new ArrayList<>(predictions.size());
+            List<String> abnormal = new ArrayList<>();
+            for (AnomalyPrediction timeslot : predictions) {
+                List<String> ips = timeslot.getIp();
+                List<Double> ip_statuses = timeslot.getIpStatus();
+                for (int i = 0; i < ips.size(); i++) {
+                    // Negative status means IP behavior was abnormal
+                    if (ip_statuses.get(i) < 0) {
+                        abnormal.add(ips.get(i));
+                    }
+                }
+                frozen.add(new FrozenPrediction(timeslot));
+            }
+            this.predictions = Collections.unmodifiableList(frozen);
+            this.abnormalIps = Collections.unmodifiableList(abnormal);
+        }
+    }
+
+    /**
+     * A read-only copy of a timeslot, its setters throw UnsupportedOperationException
+     */
+    static final class FrozenPrediction extends AnomalyPrediction {
+
+        FrozenPrediction(AnomalyPrediction timeslot) {
+            super.setIp(Collections.unmodifiableList(new ArrayList<>(timeslot.getIp())));
+            super.setIpStatus(Collections.unmodifiableList(new ArrayList<>(timeslot.getIpStatus())));
+            super.setOther(freeze(timeslot.getOther()));
+        }
+
+        @Override
+        public void setIp(List<String> ip) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setIpStatus(List<Double> ipStatus) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setOther(Map<String, Object> other) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void addOther(String name, Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        // the other fields are plain JSON, maps and lists nested in any depth
+        @SuppressWarnings("unchecked")
+        private static <T> T freeze(T value) {
+            if (value instanceof Map) {
+                Map<String, Object> copy = new LinkedHashMap<>();
+                ((Map<String, Object>) value).forEach((key, nested) -> copy.put(key, freeze(nested)));
+                return (T) Collections.unmodifiableMap(copy);
+            }
+            if (value instanceof List) {
+                List<Object> copy = new ArrayList<>();
+                ((List<Object>) value).forEach(nested -> copy.add(freeze(nested)));
+                return (T) Collections.unmodifiableList(copy);
+            }
+            return value;
+        }
+    }
+}
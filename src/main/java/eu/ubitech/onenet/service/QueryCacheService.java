@@ -0,0 +1,131 @@
+package eu.ubitech.onenet.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import eu.ubitech.onenet.config.PropertiesConfiguration.QueryCacheProperties;
+import eu.ubitech.onenet.dto.HttpTransactionsDto;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Caches the results of the elastic aggregations of the monitoring dashboard.
+ *
+ * Each query has its own cache and TTL, matching how fast its data changes. Entries are keyed by
+ * connector and by the TTL sized time window the request falls in, so every request of the same
+ * window gets the same result. Concurrent misses of the same key wait for a single elastic call.
+ *
+ * Cached values are shared between callers, so their lists are stored as unmodifiable copies:
+ * a caller that edits a result fails instead of changing it for every other caller.
+ * Hit, miss and eviction counters are published as `cache.*` metrics tagged with the cache name.
+ */
+@Slf4j
+@Service
+public class QueryCacheService {
+
+    public enum CachedQuery {
+        HITS_PER_COUNTRY,
+        BYTES_SENT,
+        RESPONSE_CODES
+    }
+
+    private final Map<CachedQuery, Cache<String, Object>> caches = new EnumMap<>(CachedQuery.class);
+    private final Map<CachedQuery, Integer> ttlSeconds = new EnumMap<>(CachedQuery.class);
+    // the time windows follow the wall clock, the expiry of the entries the ticker
+    private final Clock clock;
+
+    @Autowired
+    public QueryCacheService(PropertiesConfiguration config, MeterRegistry registry) {
+        this(config, registry, Ticker.systemTicker(), Clock.systemUTC());
+    }
+
+    QueryCacheService(PropertiesConfiguration config, MeterRegistry registry, Ticker ticker, Clock clock) {
+        this.clock = clock;
+        QueryCacheProperties properties = config.getMonitoring().getCache();
+        ttlSeconds.put(CachedQuery.HITS_PER_COUNTRY, properties.getHitsPerCountryTtl());
+        ttlSeconds.put(CachedQuery.BYTES_SENT, properties.getBytesSentTtl());
+        ttlSeconds.put(CachedQuery.RESPONSE_CODES, properties.getResponseCodesTtl());
+
+        ttlSeconds.forEach((query, ttl) -> {
+            Cache<String, Object> cache = Caffeine.newBuilder()
+                    .maximumSize(properties.getMaxEntries())
+                    .expireAfterWrite(Math.max(ttl, 1), TimeUnit.SECONDS)
+                    .ticker(ticker)
+                    .recordStats()
+                    .build();
+            CaffeineCacheMetrics.monitor(registry, cache, "monitoring." + query.name().toLowerCase());
+            caches.put(query, cache);
+        });
+    }
+
+    /**
+     * Returns the cached result of the query for the connector in the current time window, or
+     * loads it. A TTL of 0 disables caching for the query.
+     *
+     * @param query - the cached query
+     * @param connector - connector id, null for all connectors
+     * @param loader - performs the elastic query on a miss
+     * @return the query result, with unmodifiable lists
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(CachedQuery query, String connector, Callable<T> loader) {
+        int ttl = ttlSeconds.get(query);
+        if (ttl <= 0) {
+            return (T) snapshot(load(loader));
+        }
+
+        String key = (connector == null ? "*" : connector)
+                + "@" + clock.instant().getEpochSecond() / ttl;
+        return (T) caches.get(query).get(key, k -> {
+            log.debug("cache miss for {} key {}", query, k);
+            return snapshot(load(loader));
+        });
+    }
+
+    /**
+     * Internal Function that returns a copy of a query result that cannot be modified, the
+     * loader may keep and edit the lists it returned
+     */
+    private static Object snapshot(Object value) {
+        if (value instanceof List) {
+            return unmodifiableCopy((List<?>) value);
+        }
+        if (value instanceof HttpTransactionsDto) {
+            HttpTransactionsDto dto = (HttpTransactionsDto) value;
+            HttpTransactionsDto frozen = new HttpTransactionsDto();
+            frozen.setXaxis(unmodifiableCopy(dto.getXaxis()));
+            frozen.setYaxis(unmodifiableCopy(dto.getYaxis()));
+            return frozen;
+        }
+        return value;
+    }
+
+    // not List.copyOf, the results may hold nulls
+    private static <E> List<E> unmodifiableCopy(List<E> list) {
+        return list == null ? null : Collections.unmodifiableList(new ArrayList<>(list));
+    }
+
+    private <T> T load(Callable<T> loader) {
+        try {
+            return loader.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            // failed loads are not cached, the exception reaches every waiting caller
+            throw new CompletionException(e);
+        }
+    }
+}
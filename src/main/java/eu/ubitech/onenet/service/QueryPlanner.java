@@ -0,0 +1,153 @@
+package eu.ubitech.onenet.service;
+
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import eu.ubitech.onenet.config.PropertiesConfiguration.PlannerProperties;
+import eu.ubitech.onenet.exceptions.InvalidParameterException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.springframework.stereotype.Component;
+
+/**
+ * Turns the from / to / interval parameters of the monitoring endpoints into a QueryPlan.
+ *
+ * The interval is one of the fixed intervals below. Without an interval, the smallest one that
+ * gives at most `monitoring.planner.target-buckets` buckets is picked. A plan with more than
+ * `max-buckets` buckets is downsampled to the smallest interval that fits, or rejected when
+ * `downsample` is off. `from` is aligned to the start of its bucket, like elastic aligns the
+ * buckets of a fixed interval histogram.
+ *
+ * The plan also says how to run it: daily plans may read the rollups of RollupService, the
+ * others run a date histogram over the daily indices the range overlaps.
+ */
+@Slf4j
+@Component
+public class QueryPlanner {
+
+    private static final Map<String, Duration> INTERVALS = new LinkedHashMap<>();
+
+    static {
+        INTERVALS.put("1m", Duration.ofMinutes(1));
+        INTERVALS.put("5m", Duration.ofMinutes(5));
+        INTERVALS.put("15m", Duration.ofMinutes(15));
+        INTERVALS.put("30m", Duration.ofMinutes(30));
+        INTERVALS.put("1h", Duration.ofHours(1));
+        INTERVALS.put("3h", Duration.ofHours(3));
+        INTERVALS.put("6h", Duration.ofHours(6));
+        INTERVALS.put("12h", Duration.ofHours(12));
+        INTERVALS.put("1d", Duration.ofDays(1));
+    }
+
+    private final PlannerProperties properties;
+
+    public QueryPlanner(PropertiesConfiguration config) {
+        this.properties = config.getMonitoring().getPlanner();
+    }
+
+    /**
+     * Function that returns whether the request asks for a custom range, instead of the default
+     * window of the endpoint
+     */
+    public boolean isRequested(String from, String to, String interval) {
+        return from != null || to != null || interval != null;
+    }
+
+    /**
+     * Function that plans a query over a time range
+     *
+     * @param from - ISO-8601 instant, required
+     * @param to - ISO-8601 instant, null for now
+     * @param interval - bucket interval eg 1h, null to pick one
+     * @return QueryPlan
+     */
+    public QueryPlan plan(String from, String to, String interval) {
+        if (from == null) {
+            throw new InvalidParameterException();
+        }
+
+        Instant fromInstant;
+        Instant toInstant;
+        try {
+            fromInstant = Instant.parse(from);
+            toInstant = to == null ? Instant.now().truncatedTo(ChronoUnit.SECONDS) : Instant.parse(to);
+        } catch (DateTimeParseException e) {
+            throw new InvalidParameterException();
+        }
+
+        Duration span = Duration.between(fromInstant, toInstant);
+        if (span.isNegative() || span.isZero() || span.toDays() > properties.getMaxSpanDays()) {
+            throw new InvalidParameterException();
+        }
+
+        String intervalName;
+        if (interval == null) {
+            intervalName = smallestInterval(span, properties.getTargetBuckets());
+        } else if (!INTERVALS.containsKey(interval)) {
+            throw new InvalidParameterException();
+        } else if (buckets(span, INTERVALS.get(interval)) > properties.getMaxBuckets()) {
+            if (!properties.isDownsample()) {
+                throw new InvalidParameterException();
+            }
+            intervalName = smallestInterval(span, properties.getMaxBuckets());
+            log.debug("downsampled interval {} to {} for a span of {}", interval, intervalName, span);
+        } else {
+            intervalName = interval;
+        }
+
+        Duration intervalDuration = INTERVALS.get(intervalName);
+        // align to the bucket start, the buckets of elastic fixed intervals start at the epoch
+        long intervalMillis = intervalDuration.toMillis();
+        Instant alignedFrom = Instant.ofEpochMilli(Math.floorDiv(fromInstant.toEpochMilli(), intervalMillis) * intervalMillis);
+
+        return new QueryPlan(alignedFrom, toInstant, intervalName, intervalDuration);
+    }
+
+    private String smallestInterval(Duration span, int maxBuckets) {
+        for (Map.Entry<String, Duration> entry : INTERVALS.entrySet()) {
+            if (buckets(span, entry.getValue()) <= maxBuckets) {
+                return entry.getKey();
+            }
+        }
+        // longer than maxBuckets days, the span limit keeps this bounded
+        return "1d";
+    }
+
+    private static long buckets(Duration span, Duration interval) {
+        return (span.toMillis() + interval.toMillis() - 1) / interval.toMillis();
+    }
+
+    @Getter
+    public static class QueryPlan {
+        private final Instant from;
+        // exclusive
+        private final Instant to;
+        private final String intervalName;
+        private final Duration interval;
+
+        QueryPlan(Instant from, Instant to, String intervalName, Duration interval) {
+            this.from = from;
+            this.to = to;
+            this.intervalName = intervalName;
+            this.interval = interval;
+        }
+
+        public DateHistogramInterval getHistogramInterval() {
+            return new DateHistogramInterval(intervalName);
+        }
+
+        // daily buckets can be served by the rollups
+        public boolean isDaily() {
+            return interval.equals(Duration.ofDays(1));
+        }
+
+        public String toString() {
+            return "from = " + from + ", to = " + to + ", interval = " + intervalName;
+        }
+    }
+}
@@ -1,57 +1,203 @@
 package eu.ubitech.onenet.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import org.springframework.stereotype.Service;
 
 import eu.ubitech.onenet.config.PropertiesConfiguration;
+import eu.ubitech.onenet.config.PropertiesConfiguration.RateLimitBackend;
+import eu.ubitech.onenet.config.PropertiesConfiguration.RateLimitJdbcProperties;
+import eu.ubitech.onenet.config.PropertiesConfiguration.RateLimitPoolProperties;
+import eu.ubitech.onenet.config.PropertiesConfiguration.RateLimitProperties;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.scheduling.annotation.Scheduled;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.github.bucket4j.Bandwidth;
 import io.github.bucket4j.Bucket;
-import io.github.bucket4j.Bucket4j;
+import io.github.bucket4j.BucketConfiguration;
+import io.github.bucket4j.ConsumptionProbe;
 import io.github.bucket4j.Refill;
+import io.github.bucket4j.distributed.proxy.RemoteBucketBuilder;
+import io.github.bucket4j.distributed.proxy.optimization.DelayParameters;
+import io.github.bucket4j.distributed.proxy.optimization.Optimizations;
 
 @Slf4j
 @Service
-// Creates a buckets (if there isn't one already) for each API key. These
-// buckets are used to rate limit excessive API calls
+// Creates a bucket (if there isn't one already) for each user, or for each client IP of the
+// anonymous calls, in each pool. These buckets are used to rate limit excessive API calls.
+// An endpoint costs one or more calls of a pool, see RateLimitCost.
+// The buckets are kept in a bounded cache, a bucket that is not used until it would have refilled
+// completely is dropped, recreating it later gives the same full bucket.
+// Bucket count and evictions are published as `cache.*` metrics of the `ratelimit.buckets` cache,
+// the calls as the `ratelimit.requests` counter.
+// When the buckets cannot be read, eg the database of the JDBC backend is down, the calls are let
+// through and counted with outcome fail_open. The error is logged at most once a minute.
+// With the JDBC backend the cache only holds proxies of the buckets stored in the database, see
+// JdbcBucketProxyManager. Each proxy consumes up to `max-unsynchronized-calls` calls locally
+// before it writes them, so that the database is not written on every request.
 public class RateLimitingService {
 
-    private final Map<String, Bucket> cache;
-    private final PropertiesConfiguration config;
+    /**
+     * - LIGHT: the charts, auth and the other cheap endpoints
+     * - HEAVY: the endpoints that run expensive elastic queries, eg advanced filtering, with a
+     *   smaller budget of their own so they cannot use up the light pool
+     */
+    public enum Pool {
+        LIGHT,
+        HEAVY
+    }
+
+    public static final String USER_KEY_PREFIX = "user:";
+    public static final String IP_KEY_PREFIX = "ip:";
+
+    private static final long FAIL_OPEN_LOG_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final Cache<String, Bucket> cache;
+    private final Map<Pool, RateLimitPoolProperties> pools = new EnumMap<>(Pool.class);
+    private final MeterRegistry meterRegistry;
+    // null for the LOCAL backend
+    private final RemoteBucketBuilder<String> remoteBuckets;
+    private final JdbcBucketProxyManager proxyManager;
+    // when the fail open error was last logged, and the failures since
+    private final AtomicLong failOpenLoggedAt = new AtomicLong(System.nanoTime() - FAIL_OPEN_LOG_INTERVAL_NANOS);
+    private final AtomicLong failOpenSuppressed = new AtomicLong();
 
     @Autowired
-    public RateLimitingService(PropertiesConfiguration config) {
-        this.cache = new ConcurrentHashMap<>();
-        this.config = config;
+    public RateLimitingService(PropertiesConfiguration config, MeterRegistry meterRegistry, JdbcTemplate jdbcTemplate) {
+        this.meterRegistry = meterRegistry;
+
+        RateLimitProperties properties = config.getRateLimit();
+        RateLimitPoolProperties light = new RateLimitPoolProperties();
+        light.setCapacity(properties.getCapacity());
+        light.setTokenRefill(properties.getTokenRefill());
+        light.setRefillIntervalInMinutes(properties.getRefillIntervalInMinutes());
+        pools.put(Pool.LIGHT, light);
+        pools.put(Pool.HEAVY, properties.getHeavy());
+
+        // minutes for the slowest empty bucket to refill completely
+        long refillMinutes = pools.values().stream()
+                .mapToLong(pool -> (long) Math.ceil((double) pool.getCapacity() / pool.getTokenRefill())
+                        * pool.getRefillIntervalInMinutes())
+                .max()
+                .getAsLong();
+        Duration idle = Duration.ofMinutes(Math.max(properties.getIdleMinutes(), refillMinutes));
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(properties.getMaxBuckets())
+                .expireAfterAccess(idle)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "ratelimit.buckets");
+
+        if (properties.getBackend() == RateLimitBackend.JDBC) {
+            RateLimitJdbcProperties jdbc = properties.getJdbc();
+            this.proxyManager = new JdbcBucketProxyManager(jdbcTemplate, idle);
+            RemoteBucketBuilder<String> builder = proxyManager.builder();
+            if (jdbc.getMaxUnsynchronizedCalls() > 0) {
+                builder = builder.withOptimization(Optimizations.delaying(new DelayParameters(
+                        jdbc.getMaxUnsynchronizedCalls(), Duration.ofMillis(jdbc.getMaxUnsynchronizedMillis()))));
+            }
+            this.remoteBuckets = builder;
+        } else {
+            this.proxyManager = null;
+            this.remoteBuckets = null;
+        }
+        log.info("Rate limit buckets are kept {}", properties.getBackend());
+    }
+
+    /**
+     * Function that consumes API calls from the bucket of a key in a pool
+     *
+     * @param key - USER_KEY_PREFIX and the jwt subject, or IP_KEY_PREFIX and the client IP
+     * @param pool - the pool of the endpoint
+     * @param cost - calls the request costs
+     * @return ConsumptionProbe - whether the calls were consumed, remaining calls and wait time
+     */
+    public ConsumptionProbe tryConsume(String key, Pool pool, int cost) {
+        // a cost above the capacity could never be consumed
+        int calls = Math.min(cost, pools.get(pool).getCapacity());
+        ConsumptionProbe probe;
+        try {
+            probe = resolveBucket(key, pool).tryConsumeAndReturnRemaining(calls);
+        } catch (Exception e) {
+            // the database of the JDBC backend is unreachable, let the call through
+            count(key, pool, "fail_open");
+            logFailOpen(e);
+            return ConsumptionProbe.consumed(0, 0);
+        }
+
+        count(key, pool, probe.isConsumed() ? "consumed" : "rejected");
+        if (!probe.isConsumed()) {
+            log.debug("rate limited {} in pool {}", key, pool);
+        }
+        return probe;
+    }
+
+    private void count(String key, Pool pool, String outcome) {
+        Counter.builder("ratelimit.requests")
+                .description("API calls checked by the rate limiter")
+                .tag("key", key.startsWith(USER_KEY_PREFIX) ? "user" : "ip")
+                .tag("pool", pool.name().toLowerCase())
+                .tag("outcome", outcome)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    // every request fails the same way while the database is down, one line a minute is enough
+    private void logFailOpen(Exception e) {
+        long now = System.nanoTime();
+        long loggedAt = failOpenLoggedAt.get();
+        if (now - loggedAt < FAIL_OPEN_LOG_INTERVAL_NANOS || !failOpenLoggedAt.compareAndSet(loggedAt, now)) {
+            failOpenSuppressed.incrementAndGet();
+            return;
+        }
+        log.error("Rate limit buckets unavailable, letting calls through ({} failures not logged since the last one): {}",
+                failOpenSuppressed.getAndSet(0), e.getMessage());
     }
 
-    public Bucket resolveBucket(String apiKey) {
-        log.info("hashmap size: {}", cache.size());
-        return cache.computeIfAbsent(apiKey, this::newBucket);
+    public Bucket resolveBucket(String key, Pool pool) {
+        return cache.get(pool.name() + "|" + key, k -> newBucket(k, pools.get(pool)));
     }
 
-    private Bucket newBucket(String apiKey) {
-        Bandwidth limit = Bandwidth.classic(this.config.getRateLimit().getCapacity(),
-                Refill.intervally(this.config.getRateLimit().getTokenRefill(),
-                        Duration.ofMinutes(this.config.getRateLimit().getRefillIntervalInMinutes())));
-        return Bucket4j.builder()
+    private Bucket newBucket(String key, RateLimitPoolProperties pool) {
+        Bandwidth limit = Bandwidth.classic(pool.getCapacity(),
+                Refill.intervally(pool.getTokenRefill(),
+                        Duration.ofMinutes(pool.getRefillIntervalInMinutes())));
+        if (remoteBuckets != null) {
+            // the state is created in the database on the first call, by the first replica
+            return remoteBuckets.build(key, () -> BucketConfiguration.builder()
+                    .addLimit(limit)
+                    .build());
+        }
+        return Bucket.builder()
                 .addLimit(limit)
                 .build();
     }
 
-    // clear the hashmap at 4:00 AM every day so that it doesn't overflow with keys
-    // and search time increases
-    @Scheduled(cron = "0 0 4 * * *", zone = "UTC")
-    public void scheduleFixedDelayTask() {
-        cache.clear();
+    // the database buckets are not evicted with the local cache, delete the ones unused by every replica
+    @Scheduled(fixedDelayString = "PT${ratelimit.jdbc.cleanup-minutes:10}M")
+    public void removeExpiredBuckets() {
+        if (proxyManager == null) {
+            return;
+        }
+        try {
+            proxyManager.removeExpired();
+        } catch (Exception e) {
+            log.error(e.getMessage());
+        }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,329 @@
+package eu.ubitech.onenet.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import eu.ubitech.onenet.config.PropertiesConfiguration.RollupProperties;
+import eu.ubitech.onenet.model.DailyRollup;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.ParsedComposite;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.terms.ParsedStringTerms;
+import org.elasticsearch.search.aggregations.metrics.ParsedSum;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Materialises daily summaries of the connector logs, so that the multi day widgets read a few
+ * documents instead of aggregating millions of logs on every request.
+ *
+ * A background job summarises every closed UTC day of the last `monitoring.rollup.days` that is
+ * not rolled up yet: hits, bytes sent, hits per response code and hits per country, once for all
+ * logs (connector "*") and once per connector, `page-size` connectors per search. The summaries go to their own index, which does not
+ * match connectors-*, with one document per day and connector. A day is closed
+ * `settle-minutes` after midnight UTC, so that late logs are included.
+ *
+ * The "*" document of a day is written last, only after all the connector documents of that day
+ * were stored. A day counts as rolled up when its "*" document exists, and a connector without a
+ * document for a rolled up day had no logs that day.
+ */
+@Slf4j
+@Service
+public class RollupService {
+
+    private static final String CONNECTOR_ID_FIELD = "headers.x_forwarded_for.keyword";
+    public static final String ALL_CONNECTORS = "*";
+    public static final DateTimeFormatter DAY_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyy.MM.dd").withZone(ZoneOffset.UTC);
+
+    private static final int RESPONSE_CODES_SIZE = 100;
+    private static final int COUNTRIES_SIZE = 300;
+
+    private final ObjectMapper objectMapper;
+    private final RollupProperties properties;
+    private final IndexResolver indexResolver;
+    private final SearchInstrumentationService searches;
+
+    public RollupService(ObjectMapper objectMapper, PropertiesConfiguration config,
+            IndexResolver indexResolver, SearchInstrumentationService searches) {
+        this.objectMapper = objectMapper;
+        this.properties = config.getMonitoring().getRollup();
+        this.indexResolver = indexResolver;
+        this.searches = searches;
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnabled();
+    }
+
+    /**
+     * Function that returns the summaries of the given days that are rolled up
+     *
+     * @param days - days formatted as yyyy.MM.dd
+     * @param connector - connector id, null for all connectors
+     * @return summary per day, days that are not rolled up are missing
+     */
+    public Map<String, DailyRollup> getRolledDays(List<String> days, String connector) {
+        Map<String, DailyRollup> rolled = new HashMap<>();
+        if (!properties.isEnabled() || days.isEmpty()) {
+            return rolled;
+        }
+
+        String key = connector == null ? ALL_CONNECTORS : connector;
+        try {
+            BoolQueryBuilder query = QueryBuilders.boolQuery()
+                .filter(QueryBuilders.termsQuery("day", days))
+                .filter(QueryBuilders.termsQuery("connector", List.of(ALL_CONNECTORS, key)));
+            SearchRequest searchRequest = new SearchRequest(properties.getIndex())
+                .source(new SearchSourceBuilder().query(query).size(days.size() * 2));
+
+            SearchResponse searchResponse = searches.search("rollup-read", connector, searchRequest);
+
+            Map<String, DailyRollup> connectorDays = new HashMap<>();
+            for (SearchHit hit : searchResponse.getHits().getHits()) {
+                DailyRollup rollup = objectMapper.convertValue(hit.getSourceAsMap(), DailyRollup.class);
+                if (ALL_CONNECTORS.equals(rollup.getConnector())) {
+                    // the day is complete
+                    rolled.put(rollup.getDay(), rollup);
+                }
+                if (key.equals(rollup.getConnector())) {
+                    connectorDays.put(rollup.getDay(), rollup);
+                }
+            }
+
+            // a connector that has no document for a complete day had no logs that day
+            rolled.replaceAll((day, all) -> connectorDays.getOrDefault(day, emptyRollup(day, key)));
+        } catch (Exception e) {
+            // eg the rollup index does not exist yet, the callers query the raw logs instead
+            log.warn("Could not read rollups: {}", e.getMessage());
+            rolled.clear();
+        }
+        return rolled;
+    }
+
+    /**
+     * Function that summarises the logs of a time range live, the same way the rollups are built
+     *
+     * @param from - start of the range, inclusive
+     * @param to - end of the range, exclusive
+     * @param connector - connector id, null for all connectors
+     * @return DailyRollup, with the day of `from`
+     */
+    public DailyRollup summarize(Instant from, Instant to, String connector) throws IOException {
+        BoolQueryBuilder query = rangeQuery(from, to);
+        if (connector != null) {
+            query.filter(QueryBuilders.termQuery(CONNECTOR_ID_FIELD, connector));
+        }
+
+        // the total is the hit count, it has to be exact
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder().size(0).trackTotalHits(true).query(query);
+        summaryAggregations().forEach(searchSourceBuilder::aggregation);
+
+        SearchResponse searchResponse = searches.search("rollup-summary", connector,
+                logsSearchRequest(from, to, searchSourceBuilder));
+
+        return toRollup(DAY_FORMATTER.format(from), connector == null ? ALL_CONNECTORS : connector,
+                searchResponse.getHits().getTotalHits().value, searchResponse.getAggregations());
+    }
+
+    @Scheduled(initialDelayString = "PT1M", fixedDelayString = "PT${monitoring.rollup.refresh-minutes:10}M")
+    public void rollupClosedDays() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+
+        try {
+            createIndexIfMissing();
+
+            Instant now = Instant.now();
+            LocalDate today = LocalDate.now(ZoneOffset.UTC);
+            List<String> days = new ArrayList<>();
+            for (int i = properties.getDays(); i >= 1; i--) {
+                LocalDate day = today.minusDays(i);
+                Instant closedAt = day.plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant()
+                    .plus(properties.getSettleMinutes(), ChronoUnit.MINUTES);
+                if (now.isAfter(closedAt)) {
+                    days.add(DAY_FORMATTER.format(day));
+                }
+            }
+
+            Map<String, DailyRollup> rolled = getRolledDays(days, null);
+            for (String day : days) {
+                if (!rolled.containsKey(day)) {
+                    rollupDay(LocalDate.parse(day, DAY_FORMATTER));
+                }
+            }
+        } catch (Exception e) {
+            log.error(e.getMessage());
+        }
+    }
+
+    private void rollupDay(LocalDate day) throws IOException {
+        Instant from = day.atStartOfDay(ZoneOffset.UTC).toInstant();
+        Instant to = day.plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant();
+        String dayString = DAY_FORMATTER.format(from);
+        log.info("Rolling up logs of {}", dayString);
+
+        // every connector, a page at a time: a page holds about 700 buckets per connector (the
+        // summaries), all of them in one search would go over the search.max_buckets of elastic
+        String agg_name = "per_connector";
+        Map<String, Object> afterKey = null;
+        int connectors = 0;
+        do {
+            CompositeAggregationBuilder perConnector = AggregationBuilders
+                .composite(agg_name, List.of(new TermsValuesSourceBuilder("connector").field(CONNECTOR_ID_FIELD)))
+                .size(properties.getPageSize());
+            summaryAggregations().forEach(perConnector::subAggregation);
+            if (afterKey != null) {
+                perConnector.aggregateAfter(afterKey);
+            }
+
+            SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+                .size(0)
+                .query(rangeQuery(from, to))
+                .aggregation(perConnector);
+            SearchResponse searchResponse = searches.search("rollup-day", null,
+                    logsSearchRequest(from, to, searchSourceBuilder));
+            ParsedComposite page = searchResponse.getAggregations().get(agg_name);
+
+            if (!page.getBuckets().isEmpty()) {
+                BulkRequest bulkRequest = new BulkRequest();
+                for (ParsedComposite.ParsedBucket b : page.getBuckets()) {
+                    bulkRequest.add(indexRequest(
+                            toRollup(dayString, (String) b.getKey().get("connector"), b.getDocCount(), b.getAggregations())));
+                }
+                BulkResponse bulkResponse = searches.call("rollup-bulk", null,
+                        (client, options) -> client.bulk(bulkRequest, options));
+                if (bulkResponse.hasFailures()) {
+                    // without the "*" document the day is retried on the next run
+                    throw new IOException("Rollup of " + dayString + " failed: " + bulkResponse.buildFailureMessage());
+                }
+                connectors += page.getBuckets().size();
+            }
+
+            afterKey = page.getBuckets().isEmpty() ? null : page.afterKey();
+        } while (afterKey != null);
+        log.debug("Rolled up {} connectors of {}", connectors, dayString);
+
+        // written last, it marks the day complete
+        IndexRequest complete = indexRequest(summarize(from, to, null));
+        searches.call("rollup-index", null, (client, options) -> client.index(complete, options));
+    }
+
+    private SearchRequest logsSearchRequest(Instant from, Instant to, SearchSourceBuilder source) {
+        return new SearchRequest(indexResolver.resolve(from, to))
+            .indicesOptions(IndexResolver.INDICES_OPTIONS)
+            .source(source);
+    }
+
+    private BoolQueryBuilder rangeQuery(Instant from, Instant to) {
+        return QueryBuilders.boolQuery()
+            .filter(QueryBuilders.rangeQuery("@timestamp")
+                    .gte(from.toString())
+                    .lt(to.toString()));
+    }
+
+    private List<AggregationBuilder> summaryAggregations() {
+        return List.of(
+            AggregationBuilders.sum("sum_bytes_sent").field("bytes"),
+            AggregationBuilders.terms("hits_per_response_code")
+                .field("response.keyword")
+                .size(RESPONSE_CODES_SIZE),
+            AggregationBuilders.terms("hits_per_country")
+                .field("client_geoip.country_code2.keyword")
+                .size(COUNTRIES_SIZE)
+                .subAggregation(AggregationBuilders
+                    .terms("get_country_name")
+                    .field("client_geoip.country_name.keyword")
+                    .size(1)));
+    }
+
+    private DailyRollup toRollup(String day, String connector, long hits, Aggregations aggregations) {
+        DailyRollup rollup = emptyRollup(day, connector);
+        rollup.setHits(hits);
+
+        ParsedSum bytesSent = aggregations.get("sum_bytes_sent");
+        rollup.setBytes((long) bytesSent.getValue());
+
+        ParsedStringTerms responseCodes = aggregations.get("hits_per_response_code");
+        responseCodes.getBuckets().forEach(b ->
+            rollup.getResponseCodes().put(b.getKeyAsString(), b.getDocCount()));
+        if (responseCodes.getSumOfOtherDocCounts() > 0) {
+            log.warn("Rollup of {} for {} misses response codes past the top {}", day, connector, RESPONSE_CODES_SIZE);
+        }
+
+        ParsedStringTerms countries = aggregations.get("hits_per_country");
+        if (countries.getSumOfOtherDocCounts() > 0) {
+            log.warn("Rollup of {} for {} misses countries past the top {}", day, connector, COUNTRIES_SIZE);
+        }
+        countries.getBuckets().forEach(b -> {
+            rollup.getCountries().put(b.getKeyAsString(), b.getDocCount());
+            ParsedStringTerms countryName = b.getAggregations().get("get_country_name");
+            if (!countryName.getBuckets().isEmpty()) {
+                rollup.getCountryNames().put(b.getKeyAsString(), countryName.getBuckets().get(0).getKeyAsString());
+            }
+        });
+
+        return rollup;
+    }
+
+    private DailyRollup emptyRollup(String day, String connector) {
+        DailyRollup rollup = new DailyRollup();
+        rollup.setDay(day);
+        rollup.setConnector(connector);
+        return rollup;
+    }
+
+    private IndexRequest indexRequest(DailyRollup rollup) throws IOException {
+        // the same day and connector always overwrite the same document
+        return new IndexRequest(properties.getIndex())
+            .id(rollup.getDay() + "|" + rollup.getConnector())
+            .source(objectMapper.writeValueAsBytes(rollup), XContentType.JSON);
+    }
+
+    private void createIndexIfMissing() throws IOException {
+        if (searches.call("rollup-index-exists", null, (client, options) ->
+                client.indices().exists(new GetIndexRequest(properties.getIndex()), options))) {
+            return;
+        }
+        log.info("Creating rollup index {}", properties.getIndex());
+
+        // the maps are only read back from the source, they are not indexed
+        String mapping = "{\"properties\":{"
+            + "\"day\":{\"type\":\"keyword\"},"
+            + "\"connector\":{\"type\":\"keyword\"},"
+            + "\"hits\":{\"type\":\"long\"},"
+            + "\"bytes\":{\"type\":\"long\"},"
+            + "\"responseCodes\":{\"type\":\"object\",\"enabled\":false},"
+            + "\"countries\":{\"type\":\"object\",\"enabled\":false},"
+            + "\"countryNames\":{\"type\":\"object\",\"enabled\":false}"
+            + "}}";
+        searches.call("rollup-create-index", null, (client, options) -> client.indices()
+                .create(new CreateIndexRequest(properties.getIndex()).mapping(mapping, XContentType.JSON), options));
+    }
+}
@@ -0,0 +1,204 @@
+package eu.ubitech.onenet.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Cancellable;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.springframework.stereotype.Service;
+
+/**
+ * Runs the elastic searches of the dashboard and records metrics for each of them, tagged by the
+ * name of the query:
+ * - elasticsearch.query: client side latency histogram, also tagged by outcome and by whether
+ *   the query is for one connector or for all of them
+ * - elasticsearch.query.took: the time elastic reports it spent on the query
+ * - elasticsearch.query.shards: total, skipped and failed shards
+ * - elasticsearch.query.hits: total hits, when elastic tracked them
+ * - elasticsearch.query.errors: failed calls, tagged by exception
+ * The response size is recorded by the client itself, see ElasticConfig.
+ *
+ * The other calls of the dashboard (points in time, multi searches, bulks) go through call(),
+ * which records the latency and the errors only.
+ *
+ * A search is sent asynchronously and waited for, so that it can be aborted: when the waiting
+ * thread is interrupted, eg by the timeout of BulkheadService, the request is cancelled and its
+ * connection closed, which makes elastic cancel the search. The calls of call() and time() are
+ * blocking; an interrupted thread stops waiting for them but the request runs to its end.
+ *
+ * Every search and call is sent with an X-Opaque-Id of OPAQUE_ID_PREFIX and the query name, so that it
+ * can also be found in the slow logs and the tasks API of elastic.
+ */
+@Slf4j
+@Service
+public class SearchInstrumentationService {
+
+    public static final String OPAQUE_ID_HEADER = "X-Opaque-Id";
+    public static final String OPAQUE_ID_PREFIX = "onenet-";
+
+    private final RestHighLevelClient client;
+    private final MeterRegistry meterRegistry;
+
+    public SearchInstrumentationService(RestHighLevelClient client, MeterRegistry meterRegistry) {
+        this.client = client;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Function that runs a search and records its metrics
+     *
+     * @param query - name of the query, eg hits-per-country
+     * @param connector - connector id the query is for, null for all connectors
+     * @param request - the search
+     * @return SearchResponse
+     */
+    public SearchResponse search(String query, String connector, SearchRequest request) throws IOException {
+        ConcurrencyLimitService.backendCalled();
+        Timer.Sample sample = Timer.start(meterRegistry);
+        SearchResponse response;
+        try {
+            response = searchCancellable(request, options(query));
+        } catch (IOException | RuntimeException e) {
+            sample.stop(latency(query, connector, "error"));
+            errors(query, e);
+            throw e;
+        }
+        sample.stop(latency(query, connector, "success"));
+
+        Timer.builder("elasticsearch.query.took")
+            .description("Time elastic spent on the query")
+            .tag("query", query)
+            .register(meterRegistry)
+            .record(response.getTook().millis(), TimeUnit.MILLISECONDS);
+        shards(query, "total").record(response.getTotalShards());
+        shards(query, "skipped").record(response.getSkippedShards());
+        shards(query, "failed").record(response.getFailedShards());
+        if (response.getHits().getTotalHits() != null) {
+            DistributionSummary.builder("elasticsearch.query.hits")
+                .description("Total hits of the query")
+                .tag("query", query)
+                .register(meterRegistry)
+                .record(response.getHits().getTotalHits().value);
+        }
+        log.debug("{} took {}ms in elastic over {} shards", query, response.getTook().millis(), response.getTotalShards());
+
+        return response;
+    }
+
+    /**
+     * Function that times an elastic call that does not go through search, eg a spring data count
+     *
+     * @param query - name of the query
+     * @param connector - connector id the query is for, null for all connectors
+     * @param call - the call
+     * @return the result of the call
+     */
+    public <T> T time(String query, String connector, Supplier<T> call) {
+        ConcurrencyLimitService.backendCalled();
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            T result = call.get();
+            sample.stop(latency(query, connector, "success"));
+            return result;
+        } catch (RuntimeException e) {
+            sample.stop(latency(query, connector, "error"));
+            errors(query, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Function that times an elastic call other than a search, eg opening a point in time, a
+     * multi search or a bulk
+     *
+     * @param query - name of the query
+     * @param connector - connector id the query is for, null for all connectors
+     * @param call - the call, made with the given client and request options
+     * @return the result of the call
+     */
+    public <T> T call(String query, String connector, ElasticCall<T> call) throws IOException {
+        ConcurrencyLimitService.backendCalled();
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            T result = call.call(client, options(query));
+            sample.stop(latency(query, connector, "success"));
+            return result;
+        } catch (IOException | RuntimeException e) {
+            sample.stop(latency(query, connector, "error"));
+            errors(query, e);
+            throw e;
+        }
+    }
+
+    private SearchResponse searchCancellable(SearchRequest request, RequestOptions options) throws IOException {
+        CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+        Cancellable cancellable = client.searchAsync(request, options,
+            ActionListener.wrap(future::complete, future::completeExceptionally));
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            cancellable.cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Search cancelled");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private RequestOptions options(String query) {
+        return RequestOptions.DEFAULT.toBuilder()
+            .addHeader(OPAQUE_ID_HEADER, OPAQUE_ID_PREFIX + query)
+            .build();
+    }
+
+    private Timer latency(String query, String connector, String outcome) {
+        return Timer.builder("elasticsearch.query")
+            .description("Client side latency of the elastic queries")
+            .tag("query", query)
+            // the connector id itself would make a time series per connector
+            .tag("connectors", connector == null ? "all" : "one")
+            .tag("outcome", outcome)
+            .publishPercentileHistogram()
+            .register(meterRegistry);
+    }
+
+    private DistributionSummary shards(String query, String type) {
+        return DistributionSummary.builder("elasticsearch.query.shards")
+            .description("Shards searched by the query")
+            .tag("query", query)
+            .tag("type", type)
+            .register(meterRegistry);
+    }
+
+    private void errors(String query, Exception e) {
+        Counter.builder("elasticsearch.query.errors")
+            .description("Failed elastic queries")
+            .tag("query", query)
+            .tag("exception", e.getClass().getSimpleName())
+            .register(meterRegistry)
+            .increment();
+    }
+
+    @FunctionalInterface
+    public interface ElasticCall<T> {
+        T call(RestHighLevelClient client, RequestOptions options) throws IOException;
+    }
+}
@@ -0,0 +1,99 @@
+package eu.ubitech.onenet.service;
+
+import eu.ubitech.onenet.model.SecurityReportHitsCount;
+import eu.ubitech.onenet.service.IpBatchSearchService.IOConsumer;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
+import org.elasticsearch.search.aggregations.bucket.filter.FilterAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.filter.ParsedFilter;
+import org.elasticsearch.search.aggregations.bucket.terms.ParsedStringTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
+import org.springframework.stereotype.Service;
+
+/**
+ * Builds the security report, the hits, errors and country of each IP that anomaly detection
+ * classified as abnormal during the last hour.
+ *
+ * All abnormal IPs are paged with a composite aggregation and each page is handed over as soon
+ * as it is ready, so the report can be streamed and only one page is held in memory.
+ */
+@Slf4j
+@Service
+public class SecurityReportService {
+
+    private final PredictionCacheService predictionCache;
+    private final IpBatchSearchService ipBatchSearch;
+    private final IndexResolver indexResolver;
+
+    public SecurityReportService(PredictionCacheService predictionCache, IpBatchSearchService ipBatchSearch,
+            IndexResolver indexResolver) {
+        this.predictionCache = predictionCache;
+        this.ipBatchSearch = ipBatchSearch;
+        this.indexResolver = indexResolver;
+    }
+
+    /**
+     * Function that generates the security report page by page
+     *
+     * @param pageConsumer - receives the rows of each page
+     */
+    public void generate(IOConsumer<List<SecurityReportHitsCount>> pageConsumer) throws IOException {
+        // We only need abnormal IPs
+        List<String> abnormalIps = predictionCache.get("60").getAbnormalIps();
+        log.info("Abnormal IPs are: {}", abnormalIps.toString());
+
+        log.info("Starting security report aggregations");
+
+        Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        Instant roundedSince = now.minus(60, ChronoUnit.MINUTES).truncatedTo(ChronoUnit.MINUTES);
+        log.debug("instants: {} {}", now, roundedSince);
+
+        // Time range query
+        RangeQueryBuilder rangeQuery = QueryBuilders.rangeQuery("@timestamp")
+                .lte(now.toString())
+                .gte(roundedSince.toString());
+
+        // Country of the IP, an IP has a single country so the top one is enough
+        TermsAggregationBuilder aggregationCountryOfIp = AggregationBuilders
+            .terms("country_code_of_ip")
+            .field("client_geoip.country_code2.keyword")
+            .size(1);
+
+        // Errors per IP (response codes greater than 399 - 40x, 50x)
+        FilterAggregationBuilder aggregationErrorsPerIp = AggregationBuilders
+            .filter("errors_per_ip",
+                    QueryBuilders.rangeQuery("response").gt(399));
+
+        ipBatchSearch.compositePerIp(indexResolver.resolve(roundedSince, now), rangeQuery, abnormalIps,
+                List.of(aggregationCountryOfIp, aggregationErrorsPerIp),
+                buckets -> pageConsumer.accept(toRows(buckets)));
+    }
+
+    private List<SecurityReportHitsCount> toRows(List<? extends CompositeAggregation.Bucket> buckets) {
+        List<SecurityReportHitsCount> rows = new ArrayList<>(buckets.size());
+        for (CompositeAggregation.Bucket bucket : buckets) {
+            String ip = (String) bucket.getKey().get("ip");
+            long hitsCount = bucket.getDocCount();
+
+            // Logs without geoip have no country
+            ParsedStringTerms bucketCountry = bucket.getAggregations().get("country_code_of_ip");
+            String countryCode = bucketCountry.getBuckets().isEmpty()
+                ? null
+                : bucketCountry.getBuckets().get(0).getKeyAsString();
+
+            ParsedFilter bucketErrors = bucket.getAggregations().get("errors_per_ip");
+            long errorsCount = bucketErrors.getDocCount();
+
+            rows.add(new SecurityReportHitsCount(ip, countryCode, hitsCount, errorsCount));
+        }
+        return rows;
+    }
+}
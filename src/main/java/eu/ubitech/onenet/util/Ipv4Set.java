@@ -0,0 +1,129 @@
+package eu.ubitech.onenet.util;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Read-only set of IP address strings for fast membership checks.
+ *
+ * Dotted IPv4 addresses are packed into ints and kept in an open addressing int table, so a lookup
+ * parses the string and probes an int array, without hashing strings or boxing. Anything else
+ * (IPv6, malformed values) goes to a plain HashSet.
+ */
+public final class Ipv4Set {
+
+    private static final long NOT_IPV4 = -1L;
+
+    private final int[] table;
+    private final int mask;
+    // 0 marks an empty slot, so 0.0.0.0 is tracked on its own
+    private final boolean containsZero;
+    private final Set<String> others = new HashSet<>();
+
+    private Ipv4Set(Collection<String> ips) {
+        int capacity = Integer.highestOneBit(Math.max(ips.size(), 1) * 2 - 1) << 1;
+        table = new int[Math.max(capacity, 16)];
+        mask = table.length - 1;
+
+        boolean zero = false;
+        for (String ip : ips) {
+            long packed = pack(ip);
+            if (packed == NOT_IPV4) {
+                if (ip != null) {
+                    others.add(ip);
+                }
+            } else if (packed == 0) {
+                zero = true;
+            } else {
+                insert((int) packed);
+            }
+        }
+        containsZero = zero;
+    }
+
+    public static Ipv4Set of(Collection<String> ips) {
+        return new Ipv4Set(ips);
+    }
+
+    public boolean contains(String ip) {
+        long packed = pack(ip);
+        if (packed == NOT_IPV4) {
+            return ip != null && others.contains(ip);
+        }
+        if (packed == 0) {
+            return containsZero;
+        }
+        int value = (int) packed;
+        for (int slot = hash(value) & mask; ; slot = (slot + 1) & mask) {
+            int current = table[slot];
+            if (current == value) {
+                return true;
+            }
+            if (current == 0) {
+                return false;
+            }
+        }
+    }
+
+    private void insert(int value) {
+        for (int slot = hash(value) & mask; ; slot = (slot + 1) & mask) {
+            int current = table[slot];
+            if (current == value) {
+                return;
+            }
+            if (current == 0) {
+                table[slot] = value;
+                return;
+            }
+        }
+    }
+
+    static int hash(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Packs a dotted IPv4 address into the low 32 bits of a long, or returns NOT_IPV4
+     */
+    static long pack(String ip) {
+        if (ip == null) {
+            return NOT_IPV4;
+        }
+        int length = ip.length();
+        if (length < 7 || length > 15) {
+            return NOT_IPV4;
+        }
+
+        long packed = 0;
+        int octet = 0;
+        int digits = 0;
+        int dots = 0;
+        for (int i = 0; i < length; i++) {
+            char c = ip.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (digits == 1 && octet == 0) {
+                    // leading zero, keep the exact string instead
+                    return NOT_IPV4;
+                }
+                octet = octet * 10 + (c - '0');
+                digits++;
+                if (digits > 3 || octet > 255) {
+                    return NOT_IPV4;
+                }
+            } else if (c == '.' && digits > 0 && dots < 3) {
+                packed = (packed << 8) | octet;
+                octet = 0;
+                digits = 0;
+                dots++;
+            } else {
+                return NOT_IPV4;
+            }
+        }
+        if (dots != 3 || digits == 0) {
+            return NOT_IPV4;
+        }
+        return (packed << 8) | octet;
+    }
+}
@@ -0,0 +1,101 @@
+package eu.ubitech.onenet.config.jwt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.jwt.Jwt;
+
+class Jwt2AuthoritiesConverterImplTest {
+
+    private final AtomicLong nanos = new AtomicLong();
+    private SimpleMeterRegistry meterRegistry;
+    private Jwt2AuthoritiesConverterImpl converter;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        converter = new Jwt2AuthoritiesConverterImpl(new PropertiesConfiguration(), meterRegistry, nanos::get);
+    }
+
+    private static Jwt jwt(String signature, Instant expiresAt, Map<String, Object> claims) {
+        return Jwt.withTokenValue("header.payload." + signature)
+                .header("alg", "RS256")
+                .claim("sub", "user")
+                .claims(c -> c.putAll(claims))
+                .expiresAt(expiresAt)
+                .build();
+    }
+
+    private static List<String> names(Collection<? extends GrantedAuthority> authorities) {
+        return authorities.stream().map(GrantedAuthority::getAuthority).collect(Collectors.toList());
+    }
+
+    private double misses() {
+        return meterRegistry.get("cache.gets").tag("cache", "jwt.authorities").tag("result", "miss")
+                .functionCounter().count();
+    }
+
+    @Test
+    void mapsRealmAndAccountRoles() {
+        Jwt jwt = jwt("a", Instant.now().plusSeconds(300), Map.of(
+                "realm_access", Map.of("roles", List.of("admin", "user")),
+                "resource_access", Map.of("account", Map.of("roles", List.of("view-profile")))));
+
+        assertEquals(List.of("admin", "user", "view-profile"), names(converter.convert(jwt)));
+    }
+
+    @Test
+    void returnsEmptyListWithoutRoleClaims() {
+        Collection<? extends GrantedAuthority> authorities = converter.convert(jwt("a", Instant.now().plusSeconds(300), Map.of()));
+
+        assertNotNull(authorities);
+        assertTrue(authorities.isEmpty());
+    }
+
+    @Test
+    void returnsEmptyListForMalformedRoleClaims() {
+        Instant exp = Instant.now().plusSeconds(300);
+
+        assertTrue(converter.convert(jwt("a", exp, Map.of("realm_access", "admin"))).isEmpty());
+        assertTrue(converter.convert(jwt("b", exp, Map.of("realm_access", Map.of("roles", "admin")))).isEmpty());
+        assertTrue(converter.convert(jwt("c", exp, Map.of("realm_access", Map.of("roles", List.of(1, 2))))).isEmpty());
+        assertTrue(converter.convert(jwt("d", exp, Map.of("resource_access", Map.of("account", "admin")))).isEmpty());
+    }
+
+    @Test
+    void sharesAuthoritiesOfSameRoles() {
+        Instant exp = Instant.now().plusSeconds(300);
+        Map<String, Object> claims = Map.of("realm_access", Map.of("roles", List.of("admin")));
+
+        assertSame(converter.convert(jwt("a", exp, claims)), converter.convert(jwt("b", exp, claims)));
+    }
+
+    @Test
+    void cachesAuthoritiesUntilExp() {
+        Jwt jwt = jwt("a", Instant.now().plus(Duration.ofMinutes(10)),
+                Map.of("realm_access", Map.of("roles", List.of("admin"))));
+
+        converter.convert(jwt);
+        nanos.addAndGet(Duration.ofMinutes(9).toNanos());
+        converter.convert(jwt);
+        assertEquals(1, misses());
+
+        nanos.addAndGet(Duration.ofMinutes(2).toNanos());
+        converter.convert(jwt);
+        assertEquals(2, misses());
+    }
+}
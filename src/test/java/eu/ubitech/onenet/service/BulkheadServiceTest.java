@@ -0,0 +1,52 @@
+package eu.ubitech.onenet.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import eu.ubitech.onenet.config.PropertiesConfiguration.BulkheadProperties;
+import eu.ubitech.onenet.exceptions.QueryTimeoutException;
+import eu.ubitech.onenet.service.BulkheadService.Bulkhead;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class BulkheadServiceTest {
+
+    private BulkheadService bulkheads;
+
+    @BeforeEach
+    void setUp() {
+        PropertiesConfiguration config = new PropertiesConfiguration();
+        config.getMonitoring().getBulkheads().setCharts(new BulkheadProperties(1, 10, 1));
+        bulkheads = new BulkheadService(config, new ConcurrencyLimitService(config, new SimpleMeterRegistry()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        bulkheads.shutdown();
+    }
+
+    @Test
+    void interruptsCallOnTimeoutAndFreesItsThread() throws InterruptedException {
+        CountDownLatch interrupted = new CountDownLatch(1);
+
+        assertThrows(QueryTimeoutException.class, () -> bulkheads.run(Bulkhead.CHARTS, () -> {
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+            }
+            return "late";
+        }).block());
+
+        assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+        // the only thread of the bulkhead runs the next call
+        assertEquals("next", bulkheads.run(Bulkhead.CHARTS, () -> "next").block());
+    }
+}
@@ -0,0 +1,108 @@
+package eu.ubitech.onenet.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import eu.ubitech.onenet.config.PropertiesConfiguration.ConcurrencyLimitProperties;
+import eu.ubitech.onenet.service.ConcurrencyLimitService.EndpointClass;
+import eu.ubitech.onenet.service.ConcurrencyLimitService.Limiter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class ConcurrencyLimitServiceTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(1000);
+
+    private static Limiter limiter(int initialLimit, int minLimit, int maxLimit) {
+        return new Limiter(EndpointClass.CHARTS,
+                new ConcurrencyLimitProperties(initialLimit, minLimit, maxLimit, 0, 100),
+                new SimpleMeterRegistry());
+    }
+
+    @Test
+    void growsWhenLatencyStaysLowAndLimitIsUsed() {
+        Limiter limiter = limiter(10, 1, 20);
+
+        limiter.update(FAST, false, 10);
+
+        assertEquals(11, limiter.getLimit());
+    }
+
+    @Test
+    void keepsLimitWhenItIsNotUsed() {
+        Limiter limiter = limiter(10, 1, 20);
+
+        limiter.update(FAST, false, 1);
+
+        assertEquals(10, limiter.getLimit());
+    }
+
+    @Test
+    void shrinksWhenLatencyRises() {
+        Limiter limiter = limiter(10, 1, 20);
+        limiter.update(FAST, false, 0);
+
+        // 10 * (1 - 100 / 1000) = 9 calls queued, over 6 steps
+        limiter.update(SLOW, false, 10);
+
+        assertEquals(9, limiter.getLimit());
+    }
+
+    @Test
+    void cutsLimitOnFailure() {
+        Limiter limiter = limiter(20, 1, 20);
+
+        limiter.update(FAST, true, 20);
+
+        assertEquals(18, limiter.getLimit());
+    }
+
+    @Test
+    void clampsLimitToMinAndMax() {
+        Limiter atMax = limiter(10, 1, 10);
+        atMax.update(FAST, false, 10);
+        assertEquals(10, atMax.getLimit());
+
+        Limiter atMin = limiter(8, 8, 10);
+        atMin.update(FAST, true, 8);
+        atMin.update(FAST, false, 0);
+        atMin.update(SLOW, false, 8);
+        assertEquals(8, atMin.getLimit());
+    }
+
+    @Test
+    void measuresLowestLatencyAgainAfterProbeInterval() {
+        Limiter limiter = new Limiter(EndpointClass.CHARTS,
+                new ConcurrencyLimitProperties(10, 1, 20, 0, 2), new SimpleMeterRegistry());
+        limiter.update(FAST, false, 0);
+
+        // the probe takes the slow latency as the new lowest, so it is not seen as queueing
+        limiter.update(SLOW, false, 0);
+        limiter.update(SLOW, false, 10);
+
+        assertEquals(11, limiter.getLimit());
+    }
+
+    @Test
+    void keepsLimitWhenCallsAnsweredFromMemoryAreMixedIn() throws InterruptedException {
+        Limiter limiter = limiter(10, 1, 20);
+        long fromMemory = TimeUnit.MICROSECONDS.toNanos(5);
+
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 10; i++) {
+                limiter.acquire();
+            }
+            // the cached widgets and the connectors list finish first and are not sampled
+            for (int i = 0; i < 3; i++) {
+                limiter.release(fromMemory, false, false);
+            }
+            for (int i = 0; i < 7; i++) {
+                limiter.release(FAST, false, true);
+            }
+        }
+
+        assertTrue(limiter.getLimit() >= 10, "limit " + limiter.getLimit());
+    }
+}
@@ -0,0 +1,118 @@
+package eu.ubitech.onenet.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.github.bucket4j.Bandwidth;
+import io.github.bucket4j.BucketConfiguration;
+import io.github.bucket4j.Refill;
+import io.github.bucket4j.distributed.BucketProxy;
+import io.github.bucket4j.distributed.proxy.generic.compare_and_swap.AsyncCompareAndSwapOperation;
+import io.github.bucket4j.distributed.proxy.generic.compare_and_swap.CompareAndSwapOperation;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.UUID;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+class JdbcBucketProxyManagerTest {
+
+    private static final byte[] FIRST = {1};
+    private static final byte[] SECOND = {2};
+    private static final byte[] THIRD = {3};
+
+    private JdbcTemplate jdbcTemplate;
+    private JdbcBucketProxyManager manager;
+
+    @BeforeEach
+    void setUp() {
+        // a fresh in-memory database per test, kept open until the jvm exits
+        jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1"));
+        manager = new JdbcBucketProxyManager(jdbcTemplate, Duration.ofMinutes(10));
+    }
+
+    @Test
+    void insertsStateOfNewBucket() {
+        CompareAndSwapOperation operation = manager.beginCompareAndSwapOperation("key");
+
+        assertEquals(Optional.empty(), operation.getStateData());
+        assertTrue(operation.compareAndSwap(null, FIRST, null));
+        assertArrayEquals(FIRST, manager.beginCompareAndSwapOperation("key").getStateData().get());
+    }
+
+    @Test
+    void rejectsInsertOfBucketCreatedConcurrently() {
+        CompareAndSwapOperation first = manager.beginCompareAndSwapOperation("key");
+        CompareAndSwapOperation second = manager.beginCompareAndSwapOperation("key");
+        first.getStateData();
+        second.getStateData();
+
+        assertTrue(first.compareAndSwap(null, FIRST, null));
+        // the primary key rejects the second insert with a DuplicateKeyException
+        assertFalse(second.compareAndSwap(null, SECOND, null));
+        assertArrayEquals(FIRST, manager.beginCompareAndSwapOperation("key").getStateData().get());
+    }
+
+    @Test
+    void rejectsSwapOfStaleVersion() {
+        manager.beginCompareAndSwapOperation("key").compareAndSwap(null, FIRST, null);
+        CompareAndSwapOperation first = manager.beginCompareAndSwapOperation("key");
+        CompareAndSwapOperation second = manager.beginCompareAndSwapOperation("key");
+        byte[] firstRead = first.getStateData().get();
+        byte[] secondRead = second.getStateData().get();
+
+        assertTrue(first.compareAndSwap(firstRead, SECOND, null));
+        assertFalse(second.compareAndSwap(secondRead, THIRD, null));
+        assertArrayEquals(SECOND, manager.beginCompareAndSwapOperation("key").getStateData().get());
+    }
+
+    @Test
+    void swapsAsynchronously() throws Exception {
+        AsyncCompareAndSwapOperation operation = manager.beginAsyncCompareAndSwapOperation("key");
+
+        assertEquals(Optional.empty(), operation.getStateData().get());
+        assertTrue(operation.compareAndSwap(null, FIRST, null).get());
+
+        AsyncCompareAndSwapOperation stale = manager.beginAsyncCompareAndSwapOperation("key");
+        AsyncCompareAndSwapOperation current = manager.beginAsyncCompareAndSwapOperation("key");
+        byte[] staleRead = stale.getStateData().get().get();
+        byte[] currentRead = current.getStateData().get().get();
+        assertTrue(current.compareAndSwap(currentRead, SECOND, null).get());
+        assertFalse(stale.compareAndSwap(staleRead, THIRD, null).get());
+
+        manager.removeAsync("key").get();
+        assertEquals(Optional.empty(), manager.beginCompareAndSwapOperation("key").getStateData());
+    }
+
+    @Test
+    void removesOnlyExpiredBuckets() {
+        JdbcBucketProxyManager expired = new JdbcBucketProxyManager(jdbcTemplate, Duration.ofMillis(-1));
+        expired.beginCompareAndSwapOperation("idle").compareAndSwap(null, FIRST, null);
+        manager.beginCompareAndSwapOperation("active").compareAndSwap(null, SECOND, null);
+
+        assertEquals(1, manager.removeExpired());
+        assertEquals(Optional.empty(), manager.beginCompareAndSwapOperation("idle").getStateData());
+        assertArrayEquals(SECOND, manager.beginCompareAndSwapOperation("active").getStateData().get());
+        assertEquals(0, manager.removeExpired());
+    }
+
+    @Test
+    void sharesTokensBetweenReplicas() {
+        BucketConfiguration configuration = BucketConfiguration.builder()
+                .addLimit(Bandwidth.classic(3, Refill.intervally(3, Duration.ofHours(1))))
+                .build();
+        JdbcBucketProxyManager otherReplica = new JdbcBucketProxyManager(jdbcTemplate, Duration.ofMinutes(10));
+        BucketProxy bucket = manager.builder().build("user:1", configuration);
+        BucketProxy sameBucket = otherReplica.builder().build("user:1", configuration);
+
+        assertTrue(bucket.tryConsume(2));
+        assertEquals(1, sameBucket.getAvailableTokens());
+        assertTrue(sameBucket.tryConsume(1));
+        assertFalse(bucket.tryConsume(1));
+    }
+}
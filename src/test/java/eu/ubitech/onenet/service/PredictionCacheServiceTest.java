@@ -0,0 +1,68 @@
+package eu.ubitech.onenet.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import eu.ubitech.onenet.exceptions.InvalidParameterException;
+import eu.ubitech.onenet.model.AnomalyPrediction;
+import eu.ubitech.onenet.service.PredictionCacheService.PredictionSnapshot;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class PredictionCacheServiceTest {
+
+    private static AnomalyPrediction timeslot() {
+        AnomalyPrediction timeslot = new AnomalyPrediction();
+        timeslot.setIp(new ArrayList<>(List.of("10.0.0.1", "10.0.0.2")));
+        timeslot.setIpStatus(new ArrayList<>(List.of(1.0, -1.0)));
+        timeslot.addOther("timestamp", "2026-10-18T00:00:00Z");
+        timeslot.addOther("scores", new ArrayList<>(List.of(0.1, 0.9)));
+        return timeslot;
+    }
+
+    @Test
+    void keepsCopiesOfTheTimeslots() {
+        AnomalyPrediction timeslot = timeslot();
+
+        PredictionSnapshot snapshot = new PredictionSnapshot(List.of(timeslot));
+        timeslot.getIp().add("10.0.0.3");
+        timeslot.setIpStatus(List.of());
+        timeslot.addOther("timestamp", "changed");
+        ((List<Object>) timeslot.getOther().get("scores")).clear();
+
+        AnomalyPrediction cached = snapshot.getPredictions().get(0);
+        assertEquals(List.of("10.0.0.1", "10.0.0.2"), cached.getIp());
+        assertEquals(List.of(1.0, -1.0), cached.getIpStatus());
+        assertEquals(Map.of("timestamp", "2026-10-18T00:00:00Z", "scores", List.of(0.1, 0.9)), cached.getOther());
+        assertEquals(List.of("10.0.0.2"), snapshot.getAbnormalIps());
+    }
+
+    @Test
+    void rejectsChangesToTheCachedTimeslots() {
+        AnomalyPrediction cached = new PredictionSnapshot(List.of(timeslot())).getPredictions().get(0);
+
+        assertThrows(UnsupportedOperationException.class, () -> cached.getIp().add("10.0.0.3"));
+        assertThrows(UnsupportedOperationException.class, () -> cached.setIp(List.of()));
+        assertThrows(UnsupportedOperationException.class, () -> cached.setIpStatus(List.of()));
+        assertThrows(UnsupportedOperationException.class, () -> cached.addOther("timestamp", "changed"));
+        assertThrows(UnsupportedOperationException.class,
+                () -> ((List<Object>) cached.getOther().get("scores")).clear());
+    }
+
+    @Test
+    void normalizesMinutes() {
+        assertEquals("60", PredictionCacheService.normalize("60"));
+        assertEquals("60", PredictionCacheService.normalize("060"));
+        assertEquals("60", PredictionCacheService.normalize(" 60 "));
+    }
+
+    @Test
+    void rejectsInvalidMinutes() {
+        assertThrows(InvalidParameterException.class, () -> PredictionCacheService.normalize("0"));
+        assertThrows(InvalidParameterException.class, () -> PredictionCacheService.normalize("-5"));
+        assertThrows(InvalidParameterException.class, () -> PredictionCacheService.normalize("an hour"));
+        assertThrows(InvalidParameterException.class, () -> PredictionCacheService.normalize(null));
+    }
+}
@@ -0,0 +1,177 @@
+package eu.ubitech.onenet.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import eu.ubitech.onenet.dto.HttpTransactionsDto;
+import eu.ubitech.onenet.service.QueryCacheService.CachedQuery;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class QueryCacheServiceTest {
+
+    private final AtomicLong nanos = new AtomicLong();
+    private final AtomicLong epochSeconds = new AtomicLong();
+    private final AtomicInteger loads = new AtomicInteger();
+    private PropertiesConfiguration config;
+    private QueryCacheService cache;
+
+    @BeforeEach
+    void setUp() {
+        config = new PropertiesConfiguration();
+        cache = new QueryCacheService(config, new SimpleMeterRegistry(), nanos::get, new FakeClock());
+    }
+
+    private List<String> load(CachedQuery query, String connector) {
+        return cache.get(query, connector, () -> List.of("load " + loads.incrementAndGet()));
+    }
+
+    @Test
+    void sharesUnmodifiableCopyOfList() {
+        List<String> loaded = new ArrayList<>(List.of("GR", "DE"));
+
+        List<String> first = cache.get(CachedQuery.HITS_PER_COUNTRY, null, () -> loaded);
+        loaded.add("FR");
+        List<String> second = cache.get(CachedQuery.HITS_PER_COUNTRY, null, () -> List.of("other"));
+
+        assertSame(first, second);
+        assertEquals(List.of("GR", "DE"), second);
+        assertThrows(UnsupportedOperationException.class, () -> first.add("IT"));
+    }
+
+    @Test
+    void keepsNullsOfList() {
+        List<Long> result = cache.get(CachedQuery.RESPONSE_CODES, "connector", () -> Arrays.asList(1L, null));
+
+        assertEquals(Arrays.asList(1L, null), result);
+    }
+
+    @Test
+    void freezesListsOfTransactions() {
+        HttpTransactionsDto loaded = new HttpTransactionsDto();
+        loaded.setXaxis(new ArrayList<>(List.of("2022.08.22")));
+        loaded.setYaxis(new ArrayList<>(List.of(10L)));
+
+        HttpTransactionsDto result = cache.get(CachedQuery.BYTES_SENT, null, () -> loaded);
+        loaded.getYaxis().set(0, 20L);
+
+        assertEquals(List.of(10L), result.getYaxis());
+        assertThrows(UnsupportedOperationException.class, () -> result.getXaxis().clear());
+        assertThrows(UnsupportedOperationException.class, () -> result.getYaxis().add(30L));
+    }
+
+    @Test
+    void freezesUncachedResults() {
+        config.getMonitoring().getCache().setHitsPerCountryTtl(0);
+        cache = new QueryCacheService(config, new SimpleMeterRegistry(), nanos::get, new FakeClock());
+
+        List<String> result = cache.get(CachedQuery.HITS_PER_COUNTRY, null, () -> new ArrayList<>(List.of("GR")));
+
+        assertThrows(UnsupportedOperationException.class, () -> result.add("DE"));
+    }
+
+    @Test
+    void loadsOnceForConcurrentMisses() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicReference<List<String>> first = new AtomicReference<>();
+        AtomicReference<List<String>> second = new AtomicReference<>();
+
+        Thread loader = new Thread(() -> first.set(cache.get(CachedQuery.BYTES_SENT, null, () -> {
+            loading.countDown();
+            release.await();
+            return List.of("load " + loads.incrementAndGet());
+        })));
+        loader.start();
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        Thread waiter = new Thread(() -> second.set(load(CachedQuery.BYTES_SENT, null)));
+        waiter.start();
+        // the second miss blocks on the load of the first
+        while (waiter.isAlive() && waiter.getState() != Thread.State.WAITING
+                && waiter.getState() != Thread.State.BLOCKED) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        loader.join();
+        waiter.join();
+
+        assertEquals(1, loads.get());
+        assertSame(first.get(), second.get());
+    }
+
+    @Test
+    void expiresAfterTtlOfQuery() {
+        // BYTES_SENT keeps its results 60s, HITS_PER_COUNTRY 300s
+        List<String> bytesSent = load(CachedQuery.BYTES_SENT, null);
+        List<String> hitsPerCountry = load(CachedQuery.HITS_PER_COUNTRY, null);
+
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(59));
+        assertSame(bytesSent, load(CachedQuery.BYTES_SENT, null));
+
+        // still the same time window, only the entry expired
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        assertEquals(List.of("load 3"), load(CachedQuery.BYTES_SENT, null));
+        assertSame(hitsPerCountry, load(CachedQuery.HITS_PER_COUNTRY, null));
+    }
+
+    @Test
+    void separatesConnectors() {
+        List<String> all = load(CachedQuery.RESPONSE_CODES, null);
+        List<String> first = load(CachedQuery.RESPONSE_CODES, "first");
+        List<String> second = load(CachedQuery.RESPONSE_CODES, "second");
+
+        assertEquals(3, loads.get());
+        assertNotSame(first, second);
+        assertSame(all, load(CachedQuery.RESPONSE_CODES, null));
+        assertSame(first, load(CachedQuery.RESPONSE_CODES, "first"));
+        assertSame(second, load(CachedQuery.RESPONSE_CODES, "second"));
+    }
+
+    @Test
+    void separatesTimeWindows() {
+        epochSeconds.set(120);
+        List<String> window = load(CachedQuery.RESPONSE_CODES, null);
+
+        // the entry has not expired yet, the next window is loaded anyway
+        epochSeconds.set(179);
+        assertSame(window, load(CachedQuery.RESPONSE_CODES, null));
+        epochSeconds.set(180);
+        assertEquals(List.of("load 2"), load(CachedQuery.RESPONSE_CODES, null));
+    }
+
+    // the wall clock of the time windows, moved apart from the ticker of the expiry
+    private class FakeClock extends Clock {
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochSecond(epochSeconds.get());
+        }
+    }
+}
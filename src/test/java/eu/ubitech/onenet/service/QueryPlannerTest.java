@@ -0,0 +1,111 @@
+package eu.ubitech.onenet.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import eu.ubitech.onenet.exceptions.InvalidParameterException;
+import eu.ubitech.onenet.service.QueryPlanner.QueryPlan;
+import java.time.Duration;
+import java.time.Instant;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class QueryPlannerTest {
+
+    private static final String FROM = "2022-08-22T10:07:30Z";
+
+    private PropertiesConfiguration config;
+    private QueryPlanner planner;
+
+    @BeforeEach
+    void setUp() {
+        // max-buckets 1000, target-buckets 60, downsample on, max-span-days 400
+        config = new PropertiesConfiguration();
+        planner = new QueryPlanner(config);
+    }
+
+    private static String after(Duration span) {
+        return Instant.parse(FROM).plus(span).toString();
+    }
+
+    @Test
+    void picksSmallestIntervalWithinTargetBuckets() {
+        assertEquals("1m", planner.plan(FROM, after(Duration.ofHours(1)), null).getIntervalName());
+        assertEquals("5m", planner.plan(FROM, after(Duration.ofHours(2)), null).getIntervalName());
+        assertEquals("30m", planner.plan(FROM, after(Duration.ofDays(1)), null).getIntervalName());
+        assertEquals("12h", planner.plan(FROM, after(Duration.ofDays(30)), null).getIntervalName());
+        // no interval gives 60 buckets over 90 days, the largest one is taken
+        assertEquals("1d", planner.plan(FROM, after(Duration.ofDays(90)), null).getIntervalName());
+    }
+
+    @Test
+    void keepsRequestedInterval() {
+        QueryPlan plan = planner.plan(FROM, after(Duration.ofDays(1)), "1h");
+
+        assertEquals("1h", plan.getIntervalName());
+        assertEquals(Duration.ofHours(1), plan.getInterval());
+        assertEquals(Instant.parse(after(Duration.ofDays(1))), plan.getTo());
+    }
+
+    @Test
+    void downsamplesIntervalWithTooManyBuckets() {
+        // 43200 one minute buckets, 720 hourly ones
+        QueryPlan plan = planner.plan(FROM, after(Duration.ofDays(30)), "1m");
+
+        assertEquals("1h", plan.getIntervalName());
+    }
+
+    @Test
+    void rejectsIntervalWithTooManyBucketsWithoutDownsampling() {
+        config.getMonitoring().getPlanner().setDownsample(false);
+        planner = new QueryPlanner(config);
+
+        assertThrows(InvalidParameterException.class, () -> planner.plan(FROM, after(Duration.ofDays(30)), "1m"));
+        assertEquals("1h", planner.plan(FROM, after(Duration.ofDays(30)), "1h").getIntervalName());
+    }
+
+    @Test
+    void rejectsUnknownInterval() {
+        assertThrows(InvalidParameterException.class, () -> planner.plan(FROM, after(Duration.ofDays(1)), "2h"));
+    }
+
+    @Test
+    void alignsFromToEpochBuckets() {
+        String to = after(Duration.ofDays(2));
+
+        assertEquals(Instant.parse("2022-08-22T10:05:00Z"), planner.plan(FROM, to, "5m").getFrom());
+        assertEquals(Instant.parse("2022-08-22T10:00:00Z"), planner.plan(FROM, to, "1h").getFrom());
+        // 3h buckets start at 00:00, 03:00, ... since the epoch
+        assertEquals(Instant.parse("2022-08-22T09:00:00Z"), planner.plan(FROM, to, "3h").getFrom());
+        assertEquals(Instant.parse("2022-08-22T00:00:00Z"), planner.plan(FROM, to, "1d").getFrom());
+    }
+
+    @Test
+    void limitsSpan() {
+        assertThrows(InvalidParameterException.class, () -> planner.plan(null, after(Duration.ofDays(1)), null));
+        assertThrows(InvalidParameterException.class, () -> planner.plan("yesterday", null, null));
+        assertThrows(InvalidParameterException.class, () -> planner.plan(FROM, FROM, null));
+        assertThrows(InvalidParameterException.class, () -> planner.plan(FROM, after(Duration.ofHours(-1)), null));
+        assertThrows(InvalidParameterException.class, () -> planner.plan(FROM, after(Duration.ofDays(401)), null));
+        assertEquals("1d", planner.plan(FROM, after(Duration.ofDays(400)), null).getIntervalName());
+    }
+
+    @Test
+    void endsAtNowWithoutTo() {
+        Instant before = Instant.now().minusSeconds(1);
+
+        QueryPlan plan = planner.plan(Instant.now().minus(Duration.ofHours(1)).toString(), null, null);
+
+        assertFalse(plan.getTo().isBefore(before));
+        assertFalse(plan.getTo().isAfter(Instant.now()));
+    }
+
+    @Test
+    void marksDailyPlans() {
+        assertTrue(planner.plan(FROM, after(Duration.ofDays(7)), "1d").isDaily());
+        assertFalse(planner.plan(FROM, after(Duration.ofDays(7)), "12h").isDaily());
+    }
+}
@@ -0,0 +1,42 @@
+package eu.ubitech.onenet.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import eu.ubitech.onenet.config.PropertiesConfiguration;
+import eu.ubitech.onenet.config.PropertiesConfiguration.RateLimitBackend;
+import eu.ubitech.onenet.service.RateLimitingService.Pool;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+class RateLimitingServiceTest {
+
+    @Test
+    void letsCallsThroughAndCountsThemWhenBucketsAreUnavailable() {
+        PropertiesConfiguration config = new PropertiesConfiguration();
+        config.getRateLimit().setCapacity(100);
+        config.getRateLimit().setTokenRefill(50);
+        config.getRateLimit().setRefillIntervalInMinutes(1);
+        config.getRateLimit().setBackend(RateLimitBackend.JDBC);
+        config.getRateLimit().getJdbc().setMaxUnsynchronizedCalls(0);
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1"));
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        RateLimitingService service = new RateLimitingService(config, meterRegistry, jdbcTemplate);
+        // the buckets table is gone, as if the database were unreachable
+        jdbcTemplate.execute("DROP ALL OBJECTS");
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(service.tryConsume(RateLimitingService.IP_KEY_PREFIX + "10.0.0.1", Pool.LIGHT, 1).isConsumed());
+        }
+
+        assertEquals(3, meterRegistry.get("ratelimit.requests")
+                .tag("key", "ip")
+                .tag("pool", "light")
+                .tag("outcome", "fail_open")
+                .counter().count());
+    }
+}
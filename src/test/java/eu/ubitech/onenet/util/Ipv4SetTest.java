@@ -0,0 +1,89 @@
+package eu.ubitech.onenet.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class Ipv4SetTest {
+
+    private static String ip(int packed) {
+        return (packed >>> 24) + "." + ((packed >>> 16) & 0xFF) + "." + ((packed >>> 8) & 0xFF) + "." + (packed & 0xFF);
+    }
+
+    @Test
+    void containsEdgeAddresses() {
+        Ipv4Set set = Ipv4Set.of(List.of("0.0.0.0", "255.255.255.255"));
+
+        assertTrue(set.contains("0.0.0.0"));
+        assertTrue(set.contains("255.255.255.255"));
+        assertFalse(set.contains("0.0.0.1"));
+        assertFalse(set.contains("255.255.255.254"));
+    }
+
+    @Test
+    void doesNotContainZeroUnlessAdded() {
+        Ipv4Set set = Ipv4Set.of(List.of("10.0.0.1"));
+
+        // 0 also marks the empty slots of the table
+        assertFalse(set.contains("0.0.0.0"));
+    }
+
+    @Test
+    void findsValuesThatCollide() {
+        // a set of up to 8 addresses has 16 slots, pick addresses that all hash to the same one
+        int slot = Ipv4Set.hash(0x0A000001) & 15;
+        List<String> colliding = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+        for (int value = 0x0A000001; colliding.size() < 5 || missing.size() < 3; value++) {
+            if ((Ipv4Set.hash(value) & 15) == slot) {
+                (colliding.size() < 5 ? colliding : missing).add(ip(value));
+            }
+        }
+        Ipv4Set set = Ipv4Set.of(colliding);
+
+        colliding.forEach(ip -> assertTrue(set.contains(ip), ip));
+        missing.forEach(ip -> assertFalse(set.contains(ip), ip));
+    }
+
+    @Test
+    void sizesTableForManyValues() {
+        List<String> ips = new ArrayList<>();
+        for (int i = 1; i <= 100_000; i++) {
+            ips.add(ip(0x0A000000 + i * 7));
+        }
+        Ipv4Set set = Ipv4Set.of(ips);
+
+        ips.forEach(ip -> assertTrue(set.contains(ip), ip));
+        for (int i = 1; i <= 1000; i++) {
+            assertFalse(set.contains(ip(0x0A000000 + i * 7 + 1)));
+        }
+    }
+
+    @Test
+    void keepsOtherValuesAsStrings() {
+        Ipv4Set set = Ipv4Set.of(Arrays.asList("::1", "010.0.0.1", "1.2.3", null));
+
+        assertTrue(set.contains("::1"));
+        assertTrue(set.contains("010.0.0.1"));
+        assertFalse(set.contains("10.0.0.1"));
+        assertTrue(set.contains("1.2.3"));
+        assertFalse(set.contains(null));
+        assertFalse(set.contains("fe80::1"));
+    }
+
+    @Test
+    void packsDottedAddresses() {
+        assertEquals(0L, Ipv4Set.pack("0.0.0.0"));
+        assertEquals(0xFFFFFFFFL, Ipv4Set.pack("255.255.255.255"));
+        assertEquals(0x0A000001L, Ipv4Set.pack("10.0.0.1"));
+        assertEquals(-1L, Ipv4Set.pack("256.0.0.1"));
+        assertEquals(-1L, Ipv4Set.pack("1.2.3.4.5"));
+        assertEquals(-1L, Ipv4Set.pack("1..2.3"));
+        assertEquals(-1L, Ipv4Set.pack("1.2.3.4."));
+    }
+}